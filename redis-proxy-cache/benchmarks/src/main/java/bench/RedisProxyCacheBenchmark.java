@@ -0,0 +1,167 @@
+package bench;
+
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import src.RedisProxyCache;
+import src.RedisProxyKey;
+import src.RedisProxyKeyGenerator;
+
+/**
+ * Benchmarks RedisProxyCache.get and set the way RedisProxy drives them.
+ *
+ * The cache is not thread-safe, so every operation holds the cache's monitor,
+ * the same way concurrent callers would have to share it; running with
+ * several threads (-t) therefore measures contention on that lock.
+ *
+ * Scenarios:
+ *   resident - the key space is half the capacity, nothing is evicted
+ *   eviction - the key space is 16 times the capacity, most sets evict
+ *   expiry   - the key space equals the capacity and entries expire after 1 ms
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RedisProxyCacheBenchmark {
+    /**
+     * Length of each thread's precomputed key sequence, a power of two
+     */
+    private static final int SEQUENCE_LENGTH = 1 << 20;
+
+    @Param({"uniform", "zipfian", "scan"})
+    public String workload;
+
+    @Param({"1000", "100000"})
+    public int capacity;
+
+    @Param({"resident", "eviction", "expiry"})
+    public String scenario;
+
+    @Param({"64"})
+    public int valueSize;
+
+    RedisProxyCache cache;
+    String[] keys;
+    byte[][] binaryKeys;
+    String value;
+    byte[] binaryValue;
+    int keySpace;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        long expiryMillis;
+        switch (scenario) {
+            case "resident":
+                keySpace = Math.max(1, capacity / 2);
+                expiryMillis = TimeUnit.HOURS.toMillis(1);
+                break;
+            case "eviction":
+                keySpace = capacity * 16;
+                expiryMillis = TimeUnit.HOURS.toMillis(1);
+                break;
+            case "expiry":
+                keySpace = capacity;
+                expiryMillis = 1;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown scenario: " + scenario);
+        }
+
+        keys = new String[keySpace];
+        binaryKeys = new byte[keySpace][];
+        for (int i = 0; i < keySpace; i++) {
+            keys[i] = RedisProxyKeyGenerator.key(i);
+            binaryKeys[i] = keys[i].getBytes();
+        }
+        StringBuilder builder = new StringBuilder(valueSize);
+        for (int i = 0; i < valueSize; i++) {
+            builder.append('v');
+        }
+        value = builder.toString();
+        binaryValue = value.getBytes();
+
+        cache = new RedisProxyCache(capacity, expiryMillis);
+        for (int i = 0; i < Math.min(capacity, keySpace); i++) {
+            cache.set(keys[i], value);
+        }
+    }
+
+    /**
+     * Per-thread key sequence, precomputed so the generator is not measured
+     */
+    @State(Scope.Thread)
+    public static class KeySequence {
+        int[] indexes;
+        int position;
+
+        @Setup(Level.Trial)
+        public void setUp(RedisProxyCacheBenchmark benchmark) {
+            RedisProxyKeyGenerator generator = RedisProxyKeyGenerator.forName(
+                benchmark.workload, benchmark.keySpace, Thread.currentThread().getId());
+            indexes = new int[SEQUENCE_LENGTH];
+            for (int i = 0; i < SEQUENCE_LENGTH; i++) {
+                indexes[i] = (int) generator.next();
+            }
+        }
+
+        int nextIndex() {
+            int index = indexes[position];
+            position = (position + 1) & (SEQUENCE_LENGTH - 1);
+            return index;
+        }
+    }
+
+    /**
+     * Read-through get through the String API, which encodes the key and
+     * decodes the value: a miss fills the cache
+     */
+    @Benchmark
+    public String get(KeySequence sequence) {
+        String key = keys[sequence.nextIndex()];
+        synchronized (cache) {
+            String cached = cache.get(key);
+            if (cached == null) {
+                cache.set(key, value);
+                return value;
+            }
+            return cached;
+        }
+    }
+
+    @Benchmark
+    public void set(KeySequence sequence) {
+        String key = keys[sequence.nextIndex()];
+        synchronized (cache) {
+            cache.set(key, value);
+        }
+    }
+
+    /**
+     * Read-through get on the binary path RedisProxy uses: the key is wrapped
+     * and hashed on every call, and copied when a miss fills the cache
+     */
+    @Benchmark
+    public byte[] getBinary(KeySequence sequence) {
+        RedisProxyKey key = new RedisProxyKey(binaryKeys[sequence.nextIndex()]);
+        synchronized (cache) {
+            byte[] cached = cache.get(key);
+            if (cached == null) {
+                cache.set(key.copy(), binaryValue);
+                return binaryValue;
+            }
+            return cached;
+        }
+    }
+
+    @Benchmark
+    public void setBinary(KeySequence sequence) {
+        RedisProxyKey key = new RedisProxyKey(binaryKeys[sequence.nextIndex()]);
+        synchronized (cache) {
+            cache.set(key.copy(), binaryValue);
+        }
+    }
+}
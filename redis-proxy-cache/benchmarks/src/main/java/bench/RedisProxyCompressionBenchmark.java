@@ -0,0 +1,71 @@
+package bench;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import src.RedisProxyCompressionCodec;
+
+/**
+ * Benchmarks RedisProxyCompressionCodec on the values the cache would store.
+ *
+ * Contents:
+ *   json   - repetitive JSON records, which compress well
+ *   random - random bytes, which the codec gives up on and stores as they are
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RedisProxyCompressionBenchmark {
+    @Param({"1024", "16384", "262144"})
+    public int valueSize;
+
+    @Param({"json", "random"})
+    public String contents;
+
+    RedisProxyCompressionCodec codec;
+    byte[] value;
+    byte[] stored;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        codec = new RedisProxyCompressionCodec(0, RedisProxyCompressionCodec.DEFAULT_MAX_STORED_RATIO,
+            Deflater.BEST_SPEED);
+        value = new byte[valueSize];
+        switch (contents) {
+            case "json": {
+                StringBuilder builder = new StringBuilder();
+                for (int i = 0; builder.length() < valueSize; i++) {
+                    builder.append("{\"id\":").append(i).append(",\"name\":\"user").append(i)
+                        .append("\",\"active\":true},");
+                }
+                value = Arrays.copyOf(builder.toString().getBytes(), valueSize);
+                break;
+            }
+            case "random":
+                new Random(42).nextBytes(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown contents: " + contents);
+        }
+        stored = codec.encode(value);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return codec.encode(value);
+    }
+
+    /**
+     * Inflates the stored form, as a cache hit on a compressed value does
+     */
+    @Benchmark
+    public byte[] decode() {
+        return stored == value ? value : codec.decode(stored);
+    }
+}
@@ -0,0 +1,52 @@
+package bench;
+
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import src.RedisProxyKeyGenerator;
+import src.RedisProxyPrefixTrie;
+
+/**
+ * Benchmarks routing a key to its cache partition by longest prefix, the
+ * per-request cost RedisProxy pays once partitions are configured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RedisProxyPrefixTrieBenchmark {
+    private static final String[] NAMESPACES = {"session:", "feature:", "catalog:", "user:", "key:"};
+
+    /**
+     * Number of configured partitions
+     */
+    @Param({"1", "5"})
+    public int partitions;
+
+    RedisProxyPrefixTrie<String> trie;
+    byte[][] keys;
+    int position;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        trie = new RedisProxyPrefixTrie<>();
+        trie.put("", "default");
+        for (int i = 0; i < partitions; i++) {
+            trie.put(NAMESPACES[i], NAMESPACES[i]);
+        }
+        keys = new byte[1024][];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = (NAMESPACES[i % NAMESPACES.length] + RedisProxyKeyGenerator.key(i)).getBytes();
+        }
+    }
+
+    @Benchmark
+    public String longestMatch() {
+        byte[] key = keys[position];
+        position = (position + 1) & (keys.length - 1);
+        return trie.longestMatch(key);
+    }
+}
@@ -0,0 +1,510 @@
+package src;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * In-memory stand-in for a Redis server, speaking RESP over TCP, so the proxy
+ * can be tested and load tested without a real Redis.
+ *
+ * Supports PING, ECHO, AUTH, SELECT, QUIT, GET, SET (with EX, PX, NX, XX),
+ * MGET, DEL, EXISTS, PTTL, DBSIZE and FLUSHDB. Latency can be added to every
+ * reply, and a fraction of commands can be made to fail with an error reply
+ * or a dropped connection.
+ *
+ * Keys are held as ISO-8859-1 strings, which map bytes one to one, so binary
+ * keys and values round-trip unchanged.
+ */
+public class EmbeddedRedisServer implements Closeable {
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    /**
+     * A stored value and the time at which it expires, or 0 if it does not
+     */
+    private static final class Entry {
+        final byte[] value;
+        final long expireAtMillis;
+
+        Entry(byte[] value, long expireAtMillis) {
+            this.value = value;
+            this.expireAtMillis = expireAtMillis;
+        }
+
+        boolean isExpired(long nowMillis) {
+            return expireAtMillis != 0 && nowMillis >= expireAtMillis;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> store = new ConcurrentHashMap<>();
+    private final ServerSocket serverSocket;
+    private final ExecutorService connections;
+    private final Set<Socket> openSockets = ConcurrentHashMap.newKeySet();
+    private final String password;
+    private final AtomicLong commandsProcessed = new AtomicLong();
+
+    private volatile long latencyMicros = 0;
+    private volatile double failureRate = 0;
+    private volatile double disconnectRate = 0;
+    private volatile boolean closed = false;
+
+    /**
+     * Starts a server on an ephemeral port on localhost, without a password
+     */
+    public EmbeddedRedisServer() throws IOException {
+        this(0, null);
+    }
+
+    /**
+     * Starts a server on the given port on localhost (0 picks a free port).
+     * If password is null, AUTH is rejected like it is by a Redis without requirepass.
+     */
+    public EmbeddedRedisServer(int port, String password) throws IOException {
+        this.password = password;
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.setReuseAddress(true);
+        this.serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        this.connections = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "embedded-redis-" + serverSocket.getLocalPort());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.connections.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        });
+    }
+
+    /**
+     * Returns the port the server listens on
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Returns the host the server listens on
+     */
+    public String getHost() {
+        return serverSocket.getInetAddress().getHostAddress();
+    }
+
+    /**
+     * Adds the given latency before every reply
+     */
+    public void setLatencyMicros(long latencyMicros) {
+        this.latencyMicros = latencyMicros;
+    }
+
+    /**
+     * Makes the given fraction of commands fail with an error reply
+     */
+    public void setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+    }
+
+    /**
+     * Makes the given fraction of commands close the connection instead of replying
+     */
+    public void setDisconnectRate(double disconnectRate) {
+        this.disconnectRate = disconnectRate;
+    }
+
+    /**
+     * Returns the number of commands processed since the server started
+     */
+    public long commandsProcessed() {
+        return commandsProcessed.get();
+    }
+
+    /**
+     * Stops accepting connections and closes the open ones
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        for (Socket socket : openSockets) {
+            socket.close();
+        }
+        connections.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+            }
+            catch (IOException e) {
+                // Thrown when the server socket is closed
+                return;
+            }
+            openSockets.add(socket);
+            try {
+                connections.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            }
+            catch (RejectedExecutionException e) {
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+            while (!closed) {
+                List<byte[]> command = readCommand(in);
+                if (command == null) {
+                    return;
+                }
+                if (command.isEmpty()) {
+                    continue;
+                }
+                commandsProcessed.incrementAndGet();
+
+                long latency = this.latencyMicros;
+                if (latency > 0) {
+                    // parkNanos is far more precise than Thread.sleep for short delays
+                    LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(latency));
+                }
+                double disconnect = this.disconnectRate;
+                if (disconnect > 0 && ThreadLocalRandom.current().nextDouble() < disconnect) {
+                    return;
+                }
+                double failure = this.failureRate;
+                if (failure > 0 && ThreadLocalRandom.current().nextDouble() < failure) {
+                    writeError(out, "ERR injected failure");
+                }
+                else if (!execute(command, out)) {
+                    out.flush();
+                    return;
+                }
+                // Flush once the client's pipeline is drained
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        }
+        catch (IOException e) {
+            // Connection closed by the client or by close()
+        }
+        finally {
+            openSockets.remove(socket);
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Runs one command and writes its reply; returns false if the connection should close
+     */
+    private boolean execute(List<byte[]> command, OutputStream out) throws IOException {
+        String name = new String(command.get(0), StandardCharsets.US_ASCII).toUpperCase(Locale.ROOT);
+        int args = command.size() - 1;
+        long now = System.currentTimeMillis();
+
+        switch (name) {
+            case "PING":
+                if (args == 0) {
+                    writeSimple(out, "PONG");
+                }
+                else {
+                    writeBulk(out, command.get(1));
+                }
+                return true;
+            case "ECHO":
+                if (!checkArity(out, name, args == 1)) {
+                    return true;
+                }
+                writeBulk(out, command.get(1));
+                return true;
+            case "AUTH":
+                if (!checkArity(out, name, args == 1)) {
+                    return true;
+                }
+                if (password == null) {
+                    writeError(out, "ERR Client sent AUTH, but no password is set");
+                }
+                else if (password.equals(new String(command.get(1), StandardCharsets.UTF_8))) {
+                    writeSimple(out, "OK");
+                }
+                else {
+                    writeError(out, "ERR invalid password");
+                }
+                return true;
+            case "SELECT":
+                writeSimple(out, "OK");
+                return true;
+            case "QUIT":
+                writeSimple(out, "OK");
+                return false;
+            case "GET": {
+                if (!checkArity(out, name, args == 1)) {
+                    return true;
+                }
+                Entry entry = lookup(key(command.get(1)), now);
+                writeBulk(out, entry != null ? entry.value : null);
+                return true;
+            }
+            case "MGET": {
+                if (!checkArity(out, name, args >= 1)) {
+                    return true;
+                }
+                writeArrayHeader(out, args);
+                for (int i = 1; i <= args; i++) {
+                    Entry entry = lookup(key(command.get(i)), now);
+                    writeBulk(out, entry != null ? entry.value : null);
+                }
+                return true;
+            }
+            case "SET":
+                set(command, out, now);
+                return true;
+            case "DEL": {
+                if (!checkArity(out, name, args >= 1)) {
+                    return true;
+                }
+                long removed = 0;
+                for (int i = 1; i <= args; i++) {
+                    Entry entry = store.remove(key(command.get(i)));
+                    if (entry != null && !entry.isExpired(now)) {
+                        removed++;
+                    }
+                }
+                writeInteger(out, removed);
+                return true;
+            }
+            case "EXISTS": {
+                if (!checkArity(out, name, args >= 1)) {
+                    return true;
+                }
+                long found = 0;
+                for (int i = 1; i <= args; i++) {
+                    if (lookup(key(command.get(i)), now) != null) {
+                        found++;
+                    }
+                }
+                writeInteger(out, found);
+                return true;
+            }
+            case "PTTL": {
+                if (!checkArity(out, name, args == 1)) {
+                    return true;
+                }
+                Entry entry = lookup(key(command.get(1)), now);
+                if (entry == null) {
+                    writeInteger(out, -2);
+                }
+                else if (entry.expireAtMillis == 0) {
+                    writeInteger(out, -1);
+                }
+                else {
+                    writeInteger(out, entry.expireAtMillis - now);
+                }
+                return true;
+            }
+            case "DBSIZE":
+                writeInteger(out, store.size());
+                return true;
+            case "FLUSHDB":
+            case "FLUSHALL":
+                store.clear();
+                writeSimple(out, "OK");
+                return true;
+            default:
+                writeError(out, "ERR unknown command '" + name + "'");
+                return true;
+        }
+    }
+
+    /**
+     * SET key value [EX seconds | PX milliseconds] [NX | XX]
+     */
+    private void set(List<byte[]> command, OutputStream out, long now) throws IOException {
+        if (!checkArity(out, "SET", command.size() >= 3)) {
+            return;
+        }
+        long expireAtMillis = 0;
+        boolean onlyIfAbsent = false;
+        boolean onlyIfPresent = false;
+        for (int i = 3; i < command.size(); i++) {
+            String option = new String(command.get(i), StandardCharsets.US_ASCII).toUpperCase(Locale.ROOT);
+            if ((option.equals("EX") || option.equals("PX")) && i + 1 < command.size()) {
+                long amount;
+                try {
+                    amount = Long.parseLong(new String(command.get(++i), StandardCharsets.US_ASCII));
+                }
+                catch (NumberFormatException e) {
+                    writeError(out, "ERR value is not an integer or out of range");
+                    return;
+                }
+                if (amount <= 0) {
+                    writeError(out, "ERR invalid expire time in set");
+                    return;
+                }
+                expireAtMillis = now + (option.equals("EX") ? amount * 1000 : amount);
+            }
+            else if (option.equals("NX")) {
+                onlyIfAbsent = true;
+            }
+            else if (option.equals("XX")) {
+                onlyIfPresent = true;
+            }
+            else {
+                writeError(out, "ERR syntax error");
+                return;
+            }
+        }
+
+        String key = key(command.get(1));
+        boolean present = lookup(key, now) != null;
+        if ((onlyIfAbsent && present) || (onlyIfPresent && !present)) {
+            writeBulk(out, null);
+            return;
+        }
+        store.put(key, new Entry(command.get(2), expireAtMillis));
+        writeSimple(out, "OK");
+    }
+
+    /**
+     * Returns the live entry for the key, lazily removing it if it has expired
+     */
+    private Entry lookup(String key, long now) {
+        Entry entry = store.get(key);
+        if (entry != null && entry.isExpired(now)) {
+            store.remove(key, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    private static String key(byte[] raw) {
+        return new String(raw, StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean checkArity(OutputStream out, String name, boolean valid) throws IOException {
+        if (!valid) {
+            writeError(out, "ERR wrong number of arguments for '" + name.toLowerCase(Locale.ROOT) + "' command");
+        }
+        return valid;
+    }
+
+    /**
+     * Reads a RESP array of bulk strings, or an inline command.
+     * Returns null at end of stream.
+     */
+    private static List<byte[]> readCommand(InputStream in) throws IOException {
+        int first = in.read();
+        if (first == -1) {
+            return null;
+        }
+        if (first != '*') {
+            String inline = ((char) first) + readLine(in);
+            List<byte[]> command = new ArrayList<>();
+            for (String part : inline.trim().split("\\s+")) {
+                if (!part.isEmpty()) {
+                    command.add(part.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            return command;
+        }
+
+        int count = Integer.parseInt(readLine(in));
+        List<byte[]> command = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (in.read() != '$') {
+                throw new IOException("Protocol error: expected bulk string");
+            }
+            int length = Integer.parseInt(readLine(in));
+            byte[] argument = new byte[length];
+            int read = 0;
+            while (read < length) {
+                int n = in.read(argument, read, length - read);
+                if (n == -1) {
+                    throw new EOFException();
+                }
+                read += n;
+            }
+            // Trailing CRLF
+            if (in.read() == -1 || in.read() == -1) {
+                throw new EOFException();
+            }
+            command.add(argument);
+        }
+        return command;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\r') {
+            if (c == -1) {
+                throw new EOFException();
+            }
+            line.append((char) c);
+        }
+        if (in.read() != '\n') {
+            throw new IOException("Protocol error: expected LF");
+        }
+        return line.toString();
+    }
+
+    private static void writeSimple(OutputStream out, String message) throws IOException {
+        out.write('+');
+        out.write(message.getBytes(StandardCharsets.US_ASCII));
+        out.write(CRLF);
+    }
+
+    private static void writeError(OutputStream out, String message) throws IOException {
+        out.write('-');
+        out.write(message.getBytes(StandardCharsets.US_ASCII));
+        out.write(CRLF);
+    }
+
+    private static void writeInteger(OutputStream out, long value) throws IOException {
+        out.write(':');
+        out.write(Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+        out.write(CRLF);
+    }
+
+    private static void writeArrayHeader(OutputStream out, int length) throws IOException {
+        out.write('*');
+        out.write(Integer.toString(length).getBytes(StandardCharsets.US_ASCII));
+        out.write(CRLF);
+    }
+
+    private static void writeBulk(OutputStream out, byte[] value) throws IOException {
+        if (value == null) {
+            out.write(new byte[] {'$', '-', '1', '\r', '\n'});
+            return;
+        }
+        out.write('$');
+        out.write(Integer.toString(value.length).getBytes(StandardCharsets.US_ASCII));
+        out.write(CRLF);
+        out.write(value);
+        out.write(CRLF);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        }
+        catch (IOException e) { }
+    }
+}
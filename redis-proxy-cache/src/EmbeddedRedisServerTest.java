@@ -0,0 +1,193 @@
+package src;
+
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+import redis.clients.jedis.*;
+import redis.clients.jedis.exceptions.*;
+
+/**
+ * Unit tests for the embedded stand-in Redis server, driven through Jedis.
+ */
+public class EmbeddedRedisServerTest {
+    private EmbeddedRedisServer server;
+    private Jedis jedis;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new EmbeddedRedisServer();
+        jedis = new Jedis(server.getHost(), server.getPort());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        jedis.close();
+        server.close();
+    }
+
+    /**
+     * Test the basic string commands
+     */
+    @Test
+    public void testCommands() {
+        System.out.println("Running testCommands");
+
+        assertEquals(jedis.ping(), "PONG");
+        assertEquals(jedis.set("a", "1"), "OK");
+        jedis.set("b", "2");
+        assertEquals(jedis.get("a"), "1");
+        assertNull(jedis.get("missing"));
+        assertEquals(jedis.mget("a", "missing", "b"), Arrays.asList("1", null, "2"));
+        assertEquals(jedis.pttl("a"), Long.valueOf(-1));
+        assertEquals(jedis.pttl("missing"), Long.valueOf(-2));
+        assertEquals(jedis.del("a", "missing"), Long.valueOf(1));
+        assertNull(jedis.get("a"));
+        assertEquals(jedis.flushDB(), "OK");
+        assertNull(jedis.get("b"));
+    }
+
+    /**
+     * Test that keys set with an expiry disappear
+     */
+    @Test
+    public void testExpiry() throws InterruptedException {
+        System.out.println("Running testExpiry");
+
+        jedis.set("a", "1", "NX", "PX", 50L);
+        long ttl = jedis.pttl("a");
+        assertTrue(ttl > 0 && ttl <= 50);
+        Thread.sleep(100);
+        assertNull(jedis.get("a"));
+        assertEquals(jedis.pttl("a"), Long.valueOf(-2));
+    }
+
+    /**
+     * Test that binary keys and values round-trip unchanged
+     */
+    @Test
+    public void testBinarySafe() {
+        System.out.println("Running testBinarySafe");
+
+        byte[] key = {0, (byte) 0xff, '\r', '\n'};
+        byte[] value = {(byte) 0xc3, 0x28, 0, 1};
+        jedis.set(key, value);
+        assertArrayEquals(jedis.get(key), value);
+    }
+
+    /**
+     * Test injected error replies and latency
+     */
+    @Test
+    public void testInjectedFailuresAndLatency() {
+        System.out.println("Running testInjectedFailuresAndLatency");
+
+        server.setFailureRate(1);
+        try {
+            jedis.get("a");
+            fail("Expected an injected failure");
+        }
+        catch (JedisDataException e) {
+            assertTrue(e.getMessage().contains("injected failure"));
+        }
+
+        server.setFailureRate(0);
+        server.setLatencyMicros(20000);
+        long start = System.nanoTime();
+        jedis.get("a");
+        assertTrue(System.nanoTime() - start >= 20000000L);
+    }
+
+    /**
+     * Test that the proxy works against the stand-in server
+     */
+    @Test
+    public void testProxyAgainstServer() throws Exception {
+        System.out.println("Running testProxyAgainstServer");
+
+        RedisProxy proxy = new RedisProxy(server.getHost(), server.getPort(), "testPassword", 10, 10000);
+        proxy.set("a", "1");
+        assertEquals(proxy.get("a"), "1");
+        assertEquals(proxy.get("a"), "1");
+        assertEquals(proxy.cacheHits(), 1);
+        assertEquals(proxy.cacheMisses(), 1);
+        proxy.close();
+    }
+
+    /**
+     * Test that binary keys and values go through the proxy and its cache unchanged
+     */
+    @Test
+    public void testProxyBinarySafe() throws Exception {
+        System.out.println("Running testProxyBinarySafe");
+
+        RedisProxy proxy = new RedisProxy(server.getHost(), server.getPort(), "testPassword", 10, 10000);
+        byte[] key = {(byte) 0xff, 0, 1};
+        byte[] value = {(byte) 0xc3, 0x28, 0, (byte) 0x80};
+        proxy.set(key, value);
+        assertArrayEquals(proxy.get(key), value);
+        // Served from the cache without copying
+        byte[] cached = proxy.get(new byte[] {(byte) 0xff, 0, 1});
+        assertArrayEquals(cached, value);
+        assertSame(cached, proxy.get(key));
+        assertEquals(proxy.cacheHits(), 2);
+        proxy.close();
+    }
+
+    /**
+     * Test that reusing a key array after a call leaves the cache intact
+     */
+    @Test
+    public void testProxyKeyBufferReuse() throws Exception {
+        System.out.println("Running testProxyKeyBufferReuse");
+
+        RedisProxy proxy = new RedisProxy(server.getHost(), server.getPort(), "testPassword", 10, 10000);
+        proxy.enableHotKeyTracking(4, 60000);
+        proxy.set("k1", "v1");
+        proxy.set("k2", "v2");
+        byte[] key = "k1".getBytes();
+        assertArrayEquals(proxy.get(key), "v1".getBytes());
+        key[1] = '2';
+        assertArrayEquals(proxy.get(key), "v2".getBytes());
+
+        assertEquals(proxy.cacheSize(), 2);
+        assertEquals(proxy.get("k1"), "v1");
+        assertEquals(proxy.cacheHits(), 1);
+        assertEquals(proxy.hotKeys(4).size(), 2);
+        proxy.close();
+    }
+
+    /**
+     * Test that a dropped connection fails only the call it happened on, and
+     * that the proxy reconnects afterwards
+     */
+    @Test
+    public void testProxyReconnects() throws Exception {
+        System.out.println("Running testProxyReconnects");
+
+        RedisProxy proxy = new RedisProxy(server.getHost(), server.getPort(), "testPassword", 10, 10000);
+        proxy.set("a", "1");
+        assertEquals(proxy.get("a"), "1");
+
+        server.setDisconnectRate(1);
+        try {
+            proxy.set("a", "2");
+            fail("Expected the connection to be dropped");
+        }
+        catch (JedisConnectionException e) {
+        }
+        // The write may have happened, so the cached copy is gone
+        assertFalse(proxy.cacheContainsValidEntry("a"));
+        try {
+            proxy.get("a");
+            fail("Expected the connection to be dropped");
+        }
+        catch (JedisConnectionException e) {
+        }
+
+        server.setDisconnectRate(0);
+        proxy.set("a", "3");
+        assertEquals(proxy.get("a"), "3");
+        assertEquals(proxy.ping(), "PONG");
+        proxy.close();
+    }
+}
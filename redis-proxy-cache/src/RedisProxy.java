@@ -1,15 +1,86 @@
 package src;
 
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.Deflater;
 import redis.clients.jedis.*;
 import redis.clients.jedis.exceptions.*;
+import redis.clients.util.SafeEncoder;
 
 /**
  * A proxy for Redis that takes a capacity (keys to store) and a global expiry
  * for the items stored.
+ * Calls are serialised, so one proxy can be shared by several threads.
  */
-public class RedisProxy {
+public class RedisProxy implements Closeable {
+    /**
+     * Slow log defaults, matching Redis' slowlog-log-slower-than and slowlog-max-len
+     */
+    public static final long DEFAULT_SLOWLOG_SLOWER_THAN_MICROS = 10000;
+    public static final int DEFAULT_SLOWLOG_MAX_LEN = 128;
+
     private final Jedis jedis;
+    private final String backingRedisPass;
     private final RedisProxyCache cache;
+    private volatile RedisProxySlowLog slowLog;
+
+    /**
+     * Caches with their own settings for keys starting with given prefixes,
+     * and the trie routing every key to its cache, with the default cache at
+     * the root; see addCachePartition
+     */
+    private final LinkedHashMap<String, RedisProxyCache> partitions = new LinkedHashMap<>();
+    private RedisProxyPrefixTrie<RedisProxyCache> partitionTrie;
+
+    /**
+     * Larger cache in a memory-mapped file that entries evicted from the
+     * cache are demoted to, when enabled; see enableTieredCache
+     */
+    private RedisProxyMappedCache secondTier;
+
+    /**
+     * Counts requests per key to find hot keys, when enabled; see
+     * enableHotKeyTracking. The top hotKeyCount keys of each window are
+     * marked hot in the cache, if that is configured.
+     */
+    private RedisProxyHotKeys hotKeys;
+    private int hotKeyCount;
+    private boolean pinHotKeys;
+    private long hotKeyExpiryMillis;
+
+    /**
+     * Sends the keys of sets to peer proxies and applies theirs, when
+     * enabled; see enableInvalidation
+     */
+    private RedisProxyInvalidationChannel invalidationChannel;
+
+    /**
+     * Number of gets answered from either cache tier and from the backing Redis
+     */
+    private long cacheHits;
+    private long cacheMisses;
+
+    /**
+     * Records gets and sets to a trace file while set; see RedisProxyTraceRecorder
+     */
+    private RedisProxyTraceRecorder traceRecorder;
+
+    /**
+     * Compresses large cached values while set; see configureCompression
+     */
+    private RedisProxyCompressionCodec compressionCodec;
+
+    /**
+     * Periodic and on-shutdown cache snapshots, when enabled; see enableSnapshots
+     */
+    private final Object snapshotLock = new Object();
+    private long snapshotsCaptured;
+    private final HashMap<File, Long> snapshotsWritten = new HashMap<>();
+    private File snapshotFile;
+    private ScheduledExecutorService snapshotScheduler;
+    private Thread snapshotShutdownHook;
 
     public RedisProxy(
         String backingRedisAddr,
@@ -19,8 +90,15 @@ public class RedisProxy {
         long globalExpiryMillis) {
 
         this.cache = new RedisProxyCache(cacheCapacity, globalExpiryMillis);
+        this.slowLog = new RedisProxySlowLog(
+            DEFAULT_SLOWLOG_SLOWER_THAN_MICROS, DEFAULT_SLOWLOG_MAX_LEN);
 
         this.jedis = new Jedis(backingRedisAddr, backingRedisPort);
+        this.backingRedisPass = backingRedisPass;
+        connect();
+    }
+
+    private void connect() {
         try {
             jedis.auth(backingRedisPass);
         }
@@ -29,41 +107,677 @@ public class RedisProxy {
     }
 
     /**
-     * Set the Redis mapping to this key and value, bypassing cache
+     * Reconnects, with the password, if an earlier call lost the connection
      */
-    public void set(String key, String value) {
-        jedis.set(key,value);
+    private void ensureConnected() {
+        if (!jedis.isConnected()) {
+            connect();
+        }
+    }
+
+    /**
+     * Closes a connection that failed mid-command, whose replies may now be
+     * out of step with its commands, so the next call opens a fresh one
+     */
+    private void dropConnection() {
+        try {
+            jedis.disconnect();
+        }
+        catch (JedisConnectionException e) {
+            // Already broken; the socket is closed regardless
+        }
+    }
+
+    /**
+     * Set the Redis mapping to this key and value, bypassing cache.
+     * Any cached value for the key is dropped, here and at peer proxies.
+     * If the connection to Redis fails, the call throws and the next one
+     * reconnects.
+     */
+    public void set(byte[] key, byte[] value) {
+        // Timed from before taking the lock, so queueing behind other calls
+        // shows in the slow log
+        set(key, value, System.nanoTime());
+    }
+
+    private synchronized void set(byte[] key, byte[] value, long calledNanos) {
+        if (this.traceRecorder != null) {
+            this.traceRecorder.record(RedisProxyTraceRecorder.OP_SET, key);
+        }
+        RedisProxySlowLog slowLog = this.slowLog;
+        long startNanos = System.nanoTime();
+        RedisProxyKey cacheKey = new RedisProxyKey(key);
+        if (this.hotKeys != null) {
+            recordHotKey(cacheKey);
+        }
+        try {
+            ensureConnected();
+            jedis.set(key,value);
+        }
+        catch (JedisConnectionException e) {
+            dropConnection();
+            // The write may still have reached Redis
+            invalidateEverywhere(cacheKey, key);
+            throw e;
+        }
+        long backendDoneNanos = System.nanoTime();
+        invalidateEverywhere(cacheKey, key);
+        // A set has no cache lookup; dropping cached copies counts as filling
+        slowLog.record(key, startNanos - calledNanos, 0,
+            backendDoneNanos - startNanos,
+            System.nanoTime() - backendDoneNanos,
+            value.length);
     }
 
     /**
      * Returns the value for the key in the Redis instance,
-     * checking cache first and adding to cache if not in the cache
+     * checking cache first and adding to cache if not in the cache.
+     * The returned array is shared with the cache and must not be modified.
+     * The key array may be reused once the call returns.
      */
-    public String get(String key) {
-        String cachedValue = this.cache.get(key);
+    public byte[] get(byte[] key) {
+        return get(key, System.nanoTime());
+    }
+
+    private synchronized byte[] get(byte[] key, long calledNanos) {
+        if (this.traceRecorder != null) {
+            this.traceRecorder.record(RedisProxyTraceRecorder.OP_GET, key);
+        }
+        RedisProxySlowLog slowLog = this.slowLog;
+        long startNanos = System.nanoTime();
+        RedisProxyKey cacheKey = new RedisProxyKey(key);
+        if (this.hotKeys != null) {
+            recordHotKey(cacheKey);
+        }
+        RedisProxyCache cache = cacheFor(cacheKey);
+        byte[] cachedValue = cache.get(cacheKey);
+        if (cachedValue == null && this.secondTier != null && cache == this.cache) {
+            RedisProxyMappedCache.Entry entry = this.secondTier.remove(cacheKey);
+            if (entry != null) {
+                // Promote back to the cache, which may demote another entry
+                cachedValue = this.cache.setStored(cacheKey.copy(), entry.value, entry.compressed);
+            }
+        }
+        long lookupDoneNanos = System.nanoTime();
         if (cachedValue != null) {
             // Value found in cache, moved to front
+            this.cacheHits++;
+            slowLog.record(key, startNanos - calledNanos, lookupDoneNanos - startNanos, 0, 0,
+                cachedValue.length);
             return cachedValue;
         }
         else {
             // Value not in cache
-            String value = jedis.get(key);
+            this.cacheMisses++;
+            byte[] value;
+            try {
+                ensureConnected();
+                value = jedis.get(key);
+            }
+            catch (JedisConnectionException e) {
+                dropConnection();
+                throw e;
+            }
+            long backendDoneNanos = System.nanoTime();
             if (value != null) {
-                // Value is in redis but not cache, readding
-                this.cache.set(key,value);
+                // Value is in redis but not cache, readding; the entry keeps
+                // its own copy of the key, which is only paid for on a miss
+                cache.set(cacheKey.copy(),value);
             }
+            long fillDoneNanos = System.nanoTime();
+            slowLog.record(key, startNanos - calledNanos,
+                lookupDoneNanos - startNanos,
+                backendDoneNanos - lookupDoneNanos,
+                fillDoneNanos - backendDoneNanos,
+                value != null ? value.length : 0);
             return value;
         }
     }
 
+    /**
+     * String versions of set and get, for UTF-8 keys and values
+     */
+    public void set(String key, String value) {
+        set(SafeEncoder.encode(key), SafeEncoder.encode(value));
+    }
+    public String get(String key) {
+        byte[] value = get(SafeEncoder.encode(key));
+        return value != null ? SafeEncoder.encode(value) : null;
+    }
+
     /**
      * Passthroughs for methods in cache; see comments in cache class
      */
-    public int cacheSize() {
-        return this.cache.size();
+    public synchronized int cacheSize() {
+        int size = 0;
+        for (RedisProxyCache cache : caches()) {
+            size += cache.size();
+        }
+        return size;
     }
-    public boolean cacheContainsValidEntry(String key) {
-        return this.cache.containsValidEntry(key);
+    public synchronized boolean cacheContainsValidEntry(String key) {
+        RedisProxyKey cacheKey = RedisProxyKey.of(key);
+        return cacheFor(cacheKey).containsValidEntry(cacheKey);
+    }
+
+    /**
+     * Gives keys starting with the prefix a cache of their own, with its own
+     * capacity, expiry and eviction policy, so they no longer compete with
+     * other keys for room. A capacity of zero turns caching off for them.
+     * Keys go to the partition with the longest matching prefix, or else to
+     * the default cache. Replaces any partition with the same prefix.
+     * Entries for the prefix are dropped from the cache that served it until
+     * now, so they cannot come back stale if the partition is removed. The
+     * partition starts with the current hot key marks.
+     * The second cache tier and snapshots only cover the default cache.
+     */
+    public synchronized void addCachePartition(String prefix, int capacity, long expiryMillis,
+                                               RedisProxyCache.EvictionPolicy evictionPolicy)
+            throws IllegalArgumentException {
+        if (prefix.isEmpty()) {
+            throw new IllegalArgumentException("Partition prefix cannot be empty");
+        }
+        RedisProxyCache cache = new RedisProxyCache(capacity, expiryMillis, evictionPolicy);
+        cache.setCompressionCodec(this.compressionCodec);
+        if (this.hotKeys != null) {
+            // Hot keys routed here stay protected without waiting for the next window
+            cache.setHotKeys(hotKeySet(), this.pinHotKeys, this.hotKeyExpiryMillis);
+        }
+        // A partition being replaced is dropped with its entries
+        RedisProxyCache replaced = this.partitions.put(prefix, cache);
+        if (replaced == null) {
+            removeKeysWithPrefix(prefix);
+        }
+        buildPartitionTrie();
+    }
+
+    /**
+     * Drops the partition for the prefix and its entries; its keys go back to
+     * the cache for the next shorter prefix, or the default cache, which drops
+     * any copies of them it still holds
+     */
+    public synchronized void removeCachePartition(String prefix) {
+        if (this.partitions.remove(prefix) != null) {
+            buildPartitionTrie();
+            removeKeysWithPrefix(prefix);
+        }
+    }
+
+    /**
+     * Drops entries for keys starting with the prefix from the cache that
+     * currently serves the prefix, and from the second tier if that cache is
+     * the default one
+     */
+    private void removeKeysWithPrefix(String prefix) {
+        RedisProxyKey prefixKey = RedisProxyKey.of(prefix);
+        RedisProxyCache cache = cacheFor(prefixKey);
+        cache.removeKeysWithPrefix(prefixKey.bytes());
+        if (cache == this.cache && this.secondTier != null) {
+            this.secondTier.invalidatePrefix(prefixKey.bytes());
+        }
+    }
+
+    /**
+     * Returns the number of entries in the partition for the prefix
+     */
+    public synchronized int cachePartitionSize(String prefix) throws IllegalArgumentException {
+        RedisProxyCache cache = this.partitions.get(prefix);
+        if (cache == null) {
+            throw new IllegalArgumentException("No cache partition for prefix " + prefix);
+        }
+        return cache.size();
+    }
+
+    private void buildPartitionTrie() {
+        if (this.partitions.isEmpty()) {
+            this.partitionTrie = null;
+            return;
+        }
+        RedisProxyPrefixTrie<RedisProxyCache> trie = new RedisProxyPrefixTrie<>();
+        trie.put("", this.cache);
+        for (Map.Entry<String, RedisProxyCache> partition : this.partitions.entrySet()) {
+            trie.put(partition.getKey(), partition.getValue());
+        }
+        this.partitionTrie = trie;
+    }
+
+    /**
+     * Returns the cache the key belongs in
+     */
+    private RedisProxyCache cacheFor(RedisProxyKey key) {
+        return this.partitionTrie == null ? this.cache : this.partitionTrie.longestMatch(key.bytes());
+    }
+
+    /**
+     * Returns the default cache followed by every partition's
+     */
+    private List<RedisProxyCache> caches() {
+        List<RedisProxyCache> caches = new ArrayList<>(this.partitions.size() + 1);
+        caches.add(this.cache);
+        caches.addAll(this.partitions.values());
+        return caches;
+    }
+
+    /**
+     * Returns the number of gets answered from the cache
+     */
+    public synchronized long cacheHits() {
+        return this.cacheHits;
+    }
+
+    /**
+     * Returns the number of gets that had to go to the backing Redis
+     */
+    public synchronized long cacheMisses() {
+        return this.cacheMisses;
+    }
+
+    /**
+     * Sets the slow log threshold in microseconds and its maximum length.
+     * A negative threshold disables the slow log; zero records every request.
+     * Existing entries are discarded.
+     */
+    public void configureSlowLog(long slowerThanMicros, int maxLen) {
+        this.slowLog = new RedisProxySlowLog(slowerThanMicros, maxLen);
+    }
+
+    /**
+     * Returns up to count of the most recent slow requests, newest first
+     */
+    public List<RedisProxySlowLog.Entry> slowLogGet(int count) {
+        return this.slowLog.get(count);
+    }
+
+    /**
+     * Returns the number of entries in the slow log
+     */
+    public int slowLogLen() {
+        return this.slowLog.len();
+    }
+
+    /**
+     * Discards all entries in the slow log
+     */
+    public void slowLogReset() {
+        this.slowLog.reset();
+    }
+
+    /**
+     * Compresses cached values of at least thresholdBytes that shrink to at
+     * most 90% of their size; see RedisProxyCompressionCodec. A negative
+     * threshold turns compression off. Only values cached from now on are
+     * affected.
+     */
+    public synchronized void configureCompression(int thresholdBytes) {
+        this.compressionCodec = thresholdBytes < 0 ? null : new RedisProxyCompressionCodec(
+            thresholdBytes, RedisProxyCompressionCodec.DEFAULT_MAX_STORED_RATIO, Deflater.BEST_SPEED);
+        for (RedisProxyCache cache : caches()) {
+            cache.setCompressionCodec(this.compressionCodec);
+        }
+    }
+
+    /**
+     * Returns a summary of the compression counters, or null if compression is off
+     */
+    public synchronized String compressionStats() {
+        return this.compressionCodec == null ? null : this.compressionCodec.toString();
+    }
+
+    /**
+     * Starts counting gets and sets per key with the given number of
+     * Space-Saving counters, over windows of windowMillis; see
+     * RedisProxyHotKeys. This replaces any earlier tracking.
+     */
+    public synchronized void enableHotKeyTracking(int counters, long windowMillis) {
+        this.hotKeys = new RedisProxyHotKeys(counters, windowMillis);
+    }
+
+    /**
+     * Stops counting requests and clears any hot key marks in the cache
+     */
+    public synchronized void disableHotKeyTracking() {
+        this.hotKeys = null;
+        for (RedisProxyCache cache : caches()) {
+            cache.setHotKeys(Collections.<RedisProxyKey>emptySet(), false, 0);
+        }
+    }
+
+    /**
+     * Marks the count most requested keys of each window as hot in the cache,
+     * once the window ends. Hot keys expire after hotExpiryMillis instead of
+     * the global expiry and, if pinned, are protected from eviction. A count
+     * of zero marks none.
+     */
+    public synchronized void configureHotKeyProtection(int count, boolean pinned, long hotExpiryMillis)
+            throws IllegalArgumentException {
+        if (count < 0) {
+            throw new IllegalArgumentException("Hot key count cannot be negative");
+        }
+        if (hotExpiryMillis < 0) {
+            throw new IllegalArgumentException("Hot key expiry cannot be negative");
+        }
+        this.hotKeyCount = count;
+        this.pinHotKeys = pinned;
+        this.hotKeyExpiryMillis = hotExpiryMillis;
+        if (this.hotKeys != null) {
+            markHotKeys();
+        }
+    }
+
+    /**
+     * Returns up to count of the most requested keys with their estimated
+     * request rates, highest first, or an empty list if tracking is off
+     */
+    public synchronized List<RedisProxyHotKeys.HotKey> hotKeys(int count) {
+        if (this.hotKeys == null) {
+            return new ArrayList<>();
+        }
+        return this.hotKeys.topKeys(count);
+    }
+
+    private void recordHotKey(RedisProxyKey key) {
+        if (this.hotKeys.record(key) && this.hotKeyCount > 0) {
+            markHotKeys();
+        }
+    }
+
+    private void markHotKeys() {
+        Set<RedisProxyKey> keys = hotKeySet();
+        for (RedisProxyCache cache : caches()) {
+            cache.setHotKeys(keys, this.pinHotKeys, this.hotKeyExpiryMillis);
+        }
+    }
+
+    /**
+     * Returns the keys currently marked hot
+     */
+    private Set<RedisProxyKey> hotKeySet() {
+        Set<RedisProxyKey> keys = new HashSet<>();
+        for (RedisProxyHotKeys.HotKey hotKey : this.hotKeys.topKeys(this.hotKeyCount)) {
+            keys.add(hotKey.cacheKey);
+        }
+        return keys;
+    }
+
+    /**
+     * Starts listening for invalidations from peer proxies on the given UDP
+     * port (0 for any free port), and sending the keys set through this proxy
+     * to the peers; see RedisProxyInvalidationChannel. Returns the port.
+     * If a batch from a peer is lost, every cache here is flushed.
+     */
+    public synchronized int enableInvalidation(int port, List<InetSocketAddress> peers)
+            throws IOException {
+        return enableInvalidation(new InetSocketAddress(port), peers);
+    }
+
+    /**
+     * Same as above, listening only on the given local address; invalidations
+     * are only accepted from the peers' addresses either way
+     */
+    public synchronized int enableInvalidation(InetSocketAddress localAddress, List<InetSocketAddress> peers)
+            throws IOException {
+        disableInvalidation();
+        this.invalidationChannel = new RedisProxyInvalidationChannel(localAddress,
+            new RedisProxyInvalidationChannel.Listener() {
+                @Override
+                public void invalidate(List<byte[]> keys) {
+                    synchronized (RedisProxy.this) {
+                        for (byte[] key : keys) {
+                            invalidateLocally(new RedisProxyKey(key));
+                        }
+                    }
+                }
+
+                @Override
+                public void invalidateAll() {
+                    synchronized (RedisProxy.this) {
+                        for (RedisProxyCache cache : caches()) {
+                            cache.clear();
+                        }
+                        if (secondTier != null) {
+                            secondTier.clear();
+                        }
+                    }
+                }
+            });
+        this.invalidationChannel.setPeers(peers);
+        return this.invalidationChannel.getPort();
+    }
+
+    /**
+     * Replaces the peers invalidations are sent to
+     */
+    public synchronized void setInvalidationPeers(List<InetSocketAddress> peers)
+            throws IllegalStateException {
+        if (this.invalidationChannel == null) {
+            throw new IllegalStateException("Invalidation is not enabled");
+        }
+        this.invalidationChannel.setPeers(peers);
+    }
+
+    /**
+     * Sends any queued invalidations and stops sending and receiving them
+     */
+    public synchronized void disableInvalidation() {
+        if (this.invalidationChannel != null) {
+            this.invalidationChannel.close();
+            this.invalidationChannel = null;
+        }
+    }
+
+    /**
+     * Returns a summary of the invalidation counters, or null if it is off
+     */
+    public synchronized String invalidationStats() {
+        return this.invalidationChannel == null ? null : this.invalidationChannel.toString();
+    }
+
+    private void invalidateEverywhere(RedisProxyKey cacheKey, byte[] key) {
+        invalidateLocally(cacheKey);
+        if (this.invalidationChannel != null) {
+            this.invalidationChannel.invalidate(key);
+        }
+    }
+
+    private void invalidateLocally(RedisProxyKey key) {
+        cacheFor(key).remove(key);
+        if (this.secondTier != null) {
+            this.secondTier.invalidate(key);
+        }
+    }
+
+    /**
+     * Adds a second cache tier of about capacityBytes in the given file, which
+     * is overwritten. Entries evicted from the cache to make room are demoted
+     * to it, and a get that misses the cache but hits the second tier promotes
+     * the entry back, so only a miss in both goes to Redis. Entries over
+     * slotBytes, including the key and a 32-byte header, stay out of it.
+     */
+    public synchronized void enableTieredCache(File file, long capacityBytes, int slotBytes)
+            throws IOException {
+        disableTieredCache();
+        final RedisProxyMappedCache secondTier = new RedisProxyMappedCache(
+            file, capacityBytes, slotBytes, this.cache.globalExpiryMillis());
+        this.cache.setEvictionListener(new RedisProxyCache.EntryVisitor() {
+            @Override
+            public void visit(RedisProxyKey key, byte[] value, boolean compressed, long lastUsedTimeMillis) {
+                secondTier.put(key, value, compressed, lastUsedTimeMillis);
+            }
+        });
+        this.secondTier = secondTier;
+    }
+
+    /**
+     * Drops the second cache tier and its entries
+     */
+    public synchronized void disableTieredCache() throws IOException {
+        if (this.secondTier != null) {
+            RedisProxyMappedCache secondTier = this.secondTier;
+            this.secondTier = null;
+            this.cache.setEvictionListener(null);
+            secondTier.close();
+        }
+    }
+
+    /**
+     * Returns a summary of the second tier's counters, or null if it is off
+     */
+    public synchronized String secondTierStats() {
+        return this.secondTier == null ? null : this.secondTier.toString();
+    }
+
+    /**
+     * Starts recording gets and sets to the given trace file, for replay with
+     * RedisProxyCacheSimulator. Any trace already being recorded is finished first.
+     */
+    public synchronized void startTraceRecording(File file) throws IOException {
+        stopTraceRecording();
+        this.traceRecorder = new RedisProxyTraceRecorder(file);
+    }
+
+    /**
+     * Stops recording and writes out the rest of the trace
+     */
+    public synchronized void stopTraceRecording() throws IOException {
+        if (this.traceRecorder != null) {
+            RedisProxyTraceRecorder recorder = this.traceRecorder;
+            this.traceRecorder = null;
+            recorder.close();
+        }
+    }
+
+    /**
+     * Writes the cache's entries, in recency order and with their ages, to the
+     * given file. The cache is only locked while its entries are copied, not
+     * while the file is written.
+     */
+    public void snapshotCache(File file) throws IOException {
+        writeSnapshot(captureSnapshot(), file);
+    }
+
+    /**
+     * A copy of the cache's entries, numbered in the order copies were taken
+     */
+    static final class CapturedSnapshot {
+        final long sequence;
+        final RedisProxyCacheSnapshot snapshot;
+
+        CapturedSnapshot(long sequence, RedisProxyCacheSnapshot snapshot) {
+            this.sequence = sequence;
+            this.snapshot = snapshot;
+        }
+    }
+
+    synchronized CapturedSnapshot captureSnapshot() {
+        return new CapturedSnapshot(++this.snapshotsCaptured, RedisProxyCacheSnapshot.capture(this.cache));
+    }
+
+    /**
+     * Writes the copy to the file unless a later copy was already written
+     * there, so a periodic snapshot that finishes after the final one cannot
+     * bring back older contents. Returns false if the copy was skipped.
+     */
+    boolean writeSnapshot(CapturedSnapshot captured, File file) throws IOException {
+        synchronized (snapshotLock) {
+            Long written = this.snapshotsWritten.get(file);
+            if (written != null && written > captured.sequence) {
+                return false;
+            }
+            captured.snapshot.writeTo(file);
+            this.snapshotsWritten.put(file, captured.sequence);
+            return true;
+        }
+    }
+
+    /**
+     * Loads a snapshot written by snapshotCache into the cache, skipping
+     * entries that have expired since. Returns the number of entries loaded.
+     */
+    public synchronized int loadCacheSnapshot(File file) throws IOException {
+        return RedisProxyCacheSnapshot.load(file, this.cache);
+    }
+
+    /**
+     * Warms the cache from the snapshot file if there is one, then snapshots
+     * the cache to that file every periodMillis (if positive), on close and
+     * when the virtual-machine shuts down.
+     * Call before serving requests. Returns the number of entries loaded.
+     * A snapshot that cannot be read is reported and the cache starts cold.
+     */
+    public synchronized int enableSnapshots(final File file, long periodMillis) throws IOException {
+        disableSnapshots();
+
+        int loaded = 0;
+        if (file.exists()) {
+            try {
+                loaded = loadCacheSnapshot(file);
+            }
+            catch (IOException | RuntimeException e) {
+                System.err.println("Failed to load cache snapshot from " + file + ": " + e);
+                // Drop whatever was restored before the failure
+                this.cache.clear();
+            }
+        }
+
+        this.snapshotFile = file;
+        if (periodMillis > 0) {
+            this.snapshotScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "cache-snapshot-" + file.getName());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            this.snapshotScheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    writeSnapshotQuietly(file);
+                }
+            }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        }
+        this.snapshotShutdownHook = new Thread() {
+            @Override
+            public void run() {
+                writeSnapshotQuietly(file);
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(this.snapshotShutdownHook);
+        return loaded;
+    }
+
+    /**
+     * Stops periodic and on-shutdown snapshots, writing a final one if they
+     * were enabled. A periodic snapshot still in progress is finished first,
+     * and one that copied the cache before the final one is not written.
+     */
+    public synchronized void disableSnapshots() throws IOException {
+        if (this.snapshotFile == null) {
+            return;
+        }
+        File file = this.snapshotFile;
+        this.snapshotFile = null;
+        if (this.snapshotScheduler != null) {
+            this.snapshotScheduler.shutdownNow();
+            this.snapshotScheduler = null;
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(this.snapshotShutdownHook);
+        }
+        catch (IllegalStateException e) {
+            // Already shutting down; the hook writes the snapshot
+        }
+        this.snapshotShutdownHook = null;
+        snapshotCache(file);
+    }
+
+    private void writeSnapshotQuietly(File file) {
+        try {
+            snapshotCache(file);
+        }
+        catch (IOException e) {
+            System.err.println("Failed to snapshot cache to " + file + ": " + e);
+        }
     }
 
     /*
@@ -72,14 +786,44 @@ public class RedisProxy {
     /**
      * Returns "PONG" on successfully pinging the Redis instance
      */
-    public String ping() {
-        return jedis.ping();
+    public synchronized String ping() {
+        try {
+            ensureConnected();
+            return jedis.ping();
+        }
+        catch (JedisConnectionException e) {
+            dropConnection();
+            throw e;
+        }
     }
 
     /**
      * Deletes all key-value pairs stored in the backing Redis instance
      */
-    public String flushDB() {
-        return jedis.flushDB();
+    public synchronized String flushDB() {
+        try {
+            ensureConnected();
+            return jedis.flushDB();
+        }
+        catch (JedisConnectionException e) {
+            dropConnection();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the connection to the backing Redis instance
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            disableInvalidation();
+            stopTraceRecording();
+            disableSnapshots();
+            disableTieredCache();
+        }
+        finally {
+            jedis.close();
+        }
     }
 }
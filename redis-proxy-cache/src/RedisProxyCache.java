@@ -1,6 +1,8 @@
 package src;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.function.*;
 
 /**
  * Doubly linked list node that is the value of some key in the cache and
@@ -9,11 +11,13 @@ import java.util.*;
 class CacheNode {
     public CacheNode prev;
     public CacheNode next;
-    public final String key;
-    public String value;
+    public final RedisProxyKey key;
+    public byte[] value;
+    public boolean compressed;
+    public boolean hot;
     public long lastUsedTimeMillis;
 
-    public CacheNode(String key, String value) {
+    public CacheNode(RedisProxyKey key, byte[] value) {
         this.key = key;
         this.value = value;
         this.lastUsedTimeMillis = System.currentTimeMillis();
@@ -22,9 +26,18 @@ class CacheNode {
 
 /**
  * Redis proxy cache, which stores the given capacity of keys that expire after
- * the given number of milliseconds
+ * the given number of milliseconds.
+ * Keys and values are held as raw bytes and handed out without copying, so
+ * callers must not modify arrays they pass in or get back.
  */
 public class RedisProxyCache {
+    /**
+     * Which entry makes room for a new one: the least recently used, or the
+     * first inserted. Under FIFO a get does not refresh an entry, so entries
+     * also expire a fixed time after they were set.
+     */
+    public enum EvictionPolicy { LRU, FIFO }
+
     /**
      * The front and back of the recently used list, where the front is the
      * most recently used and the back is the least recently used
@@ -35,7 +48,7 @@ public class RedisProxyCache {
     /**
      * The hash map that maps keys to their nodes in the recently used list
      */
-    private HashMap<String, CacheNode> cache;
+    private HashMap<RedisProxyKey, CacheNode> cache;
 
     /**
      * The number of keys the cache can store
@@ -47,7 +60,46 @@ public class RedisProxyCache {
      */
     private long globalExpiryMillis;
 
+    private final EvictionPolicy evictionPolicy;
+
+    /**
+     * Source of the current time in milliseconds; the system clock except
+     * when replaying recorded traffic
+     */
+    private final LongSupplier clock;
+
+    /**
+     * Compresses large values as they are stored, when set
+     */
+    private RedisProxyCompressionCodec codec;
+
+    /**
+     * Receives entries evicted to make room, when set
+     */
+    private EntryVisitor evictionListener;
+
+    /**
+     * Keys given special treatment; see setHotKeys
+     */
+    private Set<RedisProxyKey> hotKeys = Collections.emptySet();
+    private boolean pinHotKeys;
+    private long hotExpiryMillis;
+
     public RedisProxyCache(int capacity, long globalExpiryMillis) throws IllegalArgumentException {
+        this(capacity, globalExpiryMillis, EvictionPolicy.LRU, System::currentTimeMillis);
+    }
+
+    public RedisProxyCache(int capacity, long globalExpiryMillis, EvictionPolicy evictionPolicy)
+            throws IllegalArgumentException {
+        this(capacity, globalExpiryMillis, evictionPolicy, System::currentTimeMillis);
+    }
+
+    RedisProxyCache(int capacity, long globalExpiryMillis, LongSupplier clock) throws IllegalArgumentException {
+        this(capacity, globalExpiryMillis, EvictionPolicy.LRU, clock);
+    }
+
+    RedisProxyCache(int capacity, long globalExpiryMillis, EvictionPolicy evictionPolicy, LongSupplier clock)
+            throws IllegalArgumentException {
         if (capacity < 0) {
             throw new IllegalArgumentException("Invalid cache capacity");
         }
@@ -60,17 +112,44 @@ public class RedisProxyCache {
         this.recentlyUsedBack = null;
         this.capacity = capacity;
         this.globalExpiryMillis = globalExpiryMillis;
+        this.evictionPolicy = evictionPolicy;
+        this.clock = clock;
     }
 
     /**
      * Set the cache's mapping to this key and value
      */
-    public void set(String key, String value) {
+    public void set(RedisProxyKey key, byte[] value) {
+        // A zero-capacity cache stores nothing
+        if (this.capacity == 0) {
+            return;
+        }
+
+        byte[] stored = this.codec != null ? this.codec.encode(value) : value;
+        store(key, stored, stored != value);
+    }
+
+    /**
+     * Sets the cache's mapping to a value already in its stored form, as
+     * handed to an EntryVisitor, and returns the original value
+     */
+    byte[] setStored(RedisProxyKey key, byte[] stored, boolean compressed) {
+        if (this.capacity > 0) {
+            store(key, stored, compressed);
+        }
+        return decode(stored, compressed);
+    }
+
+    /**
+     * Helper method that maps the key to the stored form of a value
+     */
+    private void store(RedisProxyKey key, byte[] stored, boolean compressed) {
         CacheNode getResult = this.cache.get(key);
 
         // If already in the cache, just update
         if (getResult != null) {
-            getResult.value = value;
+            getResult.value = stored;
+            getResult.compressed = compressed;
             moveToFront(getResult);
         }
         // If not already in the cache, we need to ensure we have space
@@ -84,7 +163,9 @@ public class RedisProxyCache {
                 evictLRU();
             }
 
-            CacheNode node = new CacheNode(key, value);
+            CacheNode node = new CacheNode(key, stored);
+            node.compressed = compressed;
+            node.hot = !this.hotKeys.isEmpty() && this.hotKeys.contains(key);
             addToFront(node);
         }
     }
@@ -92,7 +173,7 @@ public class RedisProxyCache {
     /**
      * Returns the value for the key in the cache
      */
-    public String get(String key) {
+    public byte[] get(RedisProxyKey key) {
         CacheNode getResult = this.cache.get(key);
 
         if (getResult != null) {
@@ -103,8 +184,10 @@ public class RedisProxyCache {
                 return null;
             }
             else {
-                moveToFront(getResult);
-                return getResult.value;
+                if (this.evictionPolicy == EvictionPolicy.LRU) {
+                    moveToFront(getResult);
+                }
+                return decode(getResult.value, getResult.compressed);
             }
         }
         else {
@@ -112,6 +195,18 @@ public class RedisProxyCache {
         }
     }
 
+    /**
+     * Helper method that returns a stored value, decompressing it if needed
+     */
+    private byte[] decode(byte[] stored, boolean compressed) {
+        if (!compressed) {
+            return stored;
+        }
+        return this.codec != null
+            ? this.codec.decode(stored)
+            : RedisProxyCompressionCodec.decompress(stored);
+    }
+
     /**
      * Helper method that removes the given node from the recently used list
      * and returns it so that it can be used to clearStaleEntries, evictLRU and moveToFront
@@ -156,7 +251,7 @@ public class RedisProxyCache {
      */
     private void addToFront(CacheNode node) {
         this.cache.put(node.key, node);
-        node.lastUsedTimeMillis = System.currentTimeMillis();
+        node.lastUsedTimeMillis = this.clock.getAsLong();
 
         if (recentlyUsedFront == null && recentlyUsedBack == null) {
             recentlyUsedFront = node;
@@ -180,17 +275,30 @@ public class RedisProxyCache {
 
     /**
      * Helper method that removes the last (least-recently-used) node of the recently
-     * used list
+     * used list, passing over pinned hot keys unless every entry is one
      */
     private void evictLRU() {
-        removeNode(recentlyUsedBack);
+        CacheNode victim = recentlyUsedBack;
+        if (this.pinHotKeys) {
+            while (victim != null && victim.hot) {
+                victim = victim.prev;
+            }
+            if (victim == null) {
+                victim = recentlyUsedBack;
+            }
+        }
+        CacheNode node = removeNode(victim);
+        if (this.evictionListener != null) {
+            this.evictionListener.visit(node.key, node.value, node.compressed, node.lastUsedTimeMillis);
+        }
     }
 
     /**
      * Returns true if the given node is stale (expired)
      */
     private boolean isStale(CacheNode node) {
-        return (System.currentTimeMillis() - node.lastUsedTimeMillis) > this.globalExpiryMillis;
+        long expiryMillis = node.hot ? this.hotExpiryMillis : this.globalExpiryMillis;
+        return (this.clock.getAsLong() - node.lastUsedTimeMillis) > expiryMillis;
     }
 
     /**
@@ -211,22 +319,166 @@ public class RedisProxyCache {
 
         // Remove stale nodes from the back
         // This works because moving to front updates timestamps, so the recently
-        // used linked list is ordered in increasing order of age from front to back
+        // used linked list is ordered in increasing order of age from front to back.
+        // A hot key with a longer expiry stops the sweep early, which only
+        // leaves stale entries for get and evictLRU to remove
         while (recentlyUsedBack != null && isStale(recentlyUsedBack)) {
             removeNode(recentlyUsedBack);
         }
     }
 
+    /**
+     * Compresses values stored from now on with the given codec, or stops
+     * compressing if it is null. Values already stored stay as they are.
+     */
+    public void setCompressionCodec(RedisProxyCompressionCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Removes the key's entry, if any
+     */
+    public void remove(RedisProxyKey key) {
+        CacheNode getResult = this.cache.get(key);
+        if (getResult != null) {
+            removeNode(getResult);
+        }
+    }
+
+    /**
+     * Removes every entry whose key starts with the prefix, visiting every
+     * entry; returns the number removed
+     */
+    public int removeKeysWithPrefix(byte[] prefix) {
+        int removed = 0;
+        CacheNode node = recentlyUsedFront;
+        while (node != null) {
+            CacheNode next = node.next;
+            if (node.key.startsWith(prefix)) {
+                removeNode(node);
+                removed++;
+            }
+            node = next;
+        }
+        return removed;
+    }
+
+    /**
+     * Removes every entry
+     */
+    public void clear() {
+        this.cache.clear();
+        this.recentlyUsedFront = null;
+        this.recentlyUsedBack = null;
+    }
+
+    /**
+     * Marks the given keys as hot, replacing the previous set. Hot keys expire
+     * after hotExpiryMillis instead of the global expiry and, if pinned, are
+     * only evicted when every entry in the cache is hot.
+     */
+    public void setHotKeys(Set<RedisProxyKey> keys, boolean pinned, long hotExpiryMillis)
+            throws IllegalArgumentException {
+        if (hotExpiryMillis < 0) {
+            throw new IllegalArgumentException("Hot key expiry cannot be negative");
+        }
+        for (RedisProxyKey key : this.hotKeys) {
+            CacheNode node = this.cache.get(key);
+            if (node != null) {
+                node.hot = false;
+            }
+        }
+        this.hotKeys = keys;
+        this.pinHotKeys = pinned;
+        this.hotExpiryMillis = hotExpiryMillis;
+        for (RedisProxyKey key : keys) {
+            CacheNode node = this.cache.get(key);
+            if (node != null) {
+                node.hot = true;
+            }
+        }
+    }
+
+    /**
+     * Passes every entry evicted to make room for another to the listener, or
+     * to no one if it is null. Entries that expire are not passed on.
+     */
+    void setEvictionListener(EntryVisitor listener) {
+        this.evictionListener = listener;
+    }
+
+    /**
+     * Receives cache entries in RedisProxyCache.forEachFromLeastRecent and
+     * RedisProxyCache.setEvictionListener.
+     * Compressed values are passed as stored; see RedisProxyCompressionCodec.
+     */
+    interface EntryVisitor {
+        void visit(RedisProxyKey key, byte[] value, boolean compressed, long lastUsedTimeMillis);
+    }
+
+    /**
+     * Visits every entry that has not gone stale, from the least to the most
+     * recently used
+     */
+    void forEachFromLeastRecent(EntryVisitor visitor) {
+        for (CacheNode node = recentlyUsedBack; node != null; node = node.prev) {
+            if (!isStale(node)) {
+                visitor.visit(node.key, node.value, node.compressed, node.lastUsedTimeMillis);
+            }
+        }
+    }
+
+    /**
+     * Adds the entry as the most recently used one, with the given last used
+     * time. Restoring entries from the least to the most recently used keeps
+     * the recently used list ordered by age.
+     */
+    void restore(RedisProxyKey key, byte[] value, long lastUsedTimeMillis) {
+        set(key, value);
+        CacheNode node = this.cache.get(key);
+        if (node != null) {
+            node.lastUsedTimeMillis = lastUsedTimeMillis;
+        }
+    }
+
+    /**
+     * Returns the current time on the cache's clock
+     */
+    long currentTimeMillis() {
+        return this.clock.getAsLong();
+    }
+
+    /**
+     * Returns the number of milliseconds after which a key expires
+     */
+    long globalExpiryMillis() {
+        return this.globalExpiryMillis;
+    }
+
     /**
      * Returns true if the cache contains a value that would be returned by
      * get() for this key.
      * This may return false for entries that are still in the cache.
      */
-    public boolean containsValidEntry(String key) {
+    public boolean containsValidEntry(RedisProxyKey key) {
         CacheNode getResult = this.cache.get(key);
         return (getResult != null && !isStale(getResult));
     }
 
+    /**
+     * String versions of set, get and containsValidEntry, for UTF-8 keys and values
+     */
+    public void set(String key, String value) {
+        set(RedisProxyKey.of(key), value.getBytes(StandardCharsets.UTF_8));
+    }
+    public String get(String key) {
+        byte[] value = get(RedisProxyKey.of(key));
+        return value != null ? new String(value, StandardCharsets.UTF_8) : null;
+    }
+    public boolean containsValidEntry(String key) {
+        return containsValidEntry(RedisProxyKey.of(key));
+    }
+
     /**
      * Returns the number of elements stored in the cache
      * Warning: as entries go stale, the value returned loses its meaning.
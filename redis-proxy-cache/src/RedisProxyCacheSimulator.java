@@ -0,0 +1,345 @@
+package src;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Replays a trace written by RedisProxyTraceRecorder through several
+ * eviction policies at many cache sizes, and prints the resulting hit
+ * ratio curves, so cache capacity and expiry can be sized from real traffic.
+ *
+ * Only gets count towards the hit ratio. Like RedisProxy, a get that misses
+ * fills the cache and a set invalidates the key.
+ *
+ * Policies:
+ *   proxy - RedisProxyCache itself (LRU with the global expiry), on trace time
+ *   lru   - least recently used, no expiry
+ *   fifo  - first in first out, no expiry
+ *   clock - CLOCK (second chance), no expiry
+ */
+public class RedisProxyCacheSimulator {
+    public static final List<String> POLICIES = Arrays.asList("proxy", "lru", "fifo", "clock");
+
+    /**
+     * A recorded trace, held in memory as parallel arrays
+     */
+    public static final class Trace {
+        public final byte[] ops;
+        public final long[] keyHashes;
+        public final long[] timesMillis;
+
+        Trace(byte[] ops, long[] keyHashes, long[] timesMillis) {
+            this.ops = ops;
+            this.keyHashes = keyHashes;
+            this.timesMillis = timesMillis;
+        }
+
+        public int length() {
+            return ops.length;
+        }
+
+        /**
+         * Returns the number of distinct keys in the trace
+         */
+        public int distinctKeys() {
+            HashSet<Long> keys = new HashSet<>();
+            for (long keyHash : keyHashes) {
+                keys.add(keyHash);
+            }
+            return keys.size();
+        }
+    }
+
+    /**
+     * Hit ratio of one policy at one size
+     */
+    public static final class Result {
+        public final String policy;
+        public final int size;
+        public final long gets;
+        public final long hits;
+
+        Result(String policy, int size, long gets, long hits) {
+            this.policy = policy;
+            this.size = size;
+            this.gets = gets;
+            this.hits = hits;
+        }
+
+        public double hitRatio() {
+            return gets == 0 ? 0 : (double) hits / gets;
+        }
+    }
+
+    /**
+     * A cache policy under simulation, tracking only keys
+     */
+    interface Policy {
+        /**
+         * Looks the key up at the given time, inserting it on a miss; returns true on a hit
+         */
+        boolean get(long keyHash, long timeMillis);
+
+        /**
+         * Drops the key, if cached
+         */
+        void invalidate(long keyHash);
+    }
+
+    /**
+     * Reads a trace file
+     */
+    public static Trace read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < RedisProxyTraceRecorder.HEADER_BYTES
+                    || buffer.getInt() != RedisProxyTraceRecorder.MAGIC) {
+                throw new IOException("Not a proxy trace: " + file);
+            }
+            int version = buffer.getInt();
+            if (version != RedisProxyTraceRecorder.VERSION) {
+                throw new IOException("Unsupported trace version " + version);
+            }
+            long startMillis = buffer.getLong();
+
+            int records = buffer.remaining() / RedisProxyTraceRecorder.RECORD_BYTES;
+            byte[] ops = new byte[records];
+            long[] keyHashes = new long[records];
+            long[] timesMillis = new long[records];
+            for (int i = 0; i < records; i++) {
+                ops[i] = buffer.get();
+                keyHashes[i] = buffer.getLong();
+                timesMillis[i] = startMillis + (buffer.getInt() & 0xffffffffL);
+            }
+            return new Trace(ops, keyHashes, timesMillis);
+        }
+    }
+
+    /**
+     * Replays the trace through the policy at the given size
+     */
+    public static Result simulate(Trace trace, String policyName, int size, long expiryMillis) {
+        final long[] now = new long[1];
+        Policy policy = newPolicy(policyName, size, expiryMillis, now);
+        long gets = 0;
+        long hits = 0;
+        for (int i = 0; i < trace.length(); i++) {
+            now[0] = trace.timesMillis[i];
+            if (trace.ops[i] != RedisProxyTraceRecorder.OP_GET) {
+                policy.invalidate(trace.keyHashes[i]);
+                continue;
+            }
+            gets++;
+            if (policy.get(trace.keyHashes[i], now[0])) {
+                hits++;
+            }
+        }
+        return new Result(policyName, size, gets, hits);
+    }
+
+    /**
+     * Replays the trace through every policy at every size, in parallel
+     */
+    public static List<Result> simulateAll(final Trace trace, List<String> policies, int[] sizes,
+                                           final long expiryMillis, int threads)
+            throws InterruptedException, ExecutionException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (final String policy : policies) {
+                for (final int size : sizes) {
+                    futures.add(executor.submit(new Callable<Result>() {
+                        @Override
+                        public Result call() {
+                            return simulate(trace, policy, size, expiryMillis);
+                        }
+                    }));
+                }
+            }
+            List<Result> results = new ArrayList<>();
+            for (Future<Result> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    static Policy newPolicy(String name, final int size, long expiryMillis, final long[] now)
+            throws IllegalArgumentException {
+        switch (name) {
+            case "proxy": {
+                final RedisProxyCache cache = new RedisProxyCache(size, expiryMillis, () -> now[0]);
+                final byte[] value = new byte[0];
+                return new Policy() {
+                    @Override
+                    public boolean get(long keyHash, long timeMillis) {
+                        RedisProxyKey key = keyOf(keyHash);
+                        if (cache.get(key) != null) {
+                            return true;
+                        }
+                        cache.set(key, value);
+                        return false;
+                    }
+
+                    @Override
+                    public void invalidate(long keyHash) {
+                        cache.remove(keyOf(keyHash));
+                    }
+
+                    private RedisProxyKey keyOf(long keyHash) {
+                        return new RedisProxyKey(ByteBuffer.allocate(8).putLong(keyHash).array());
+                    }
+                };
+            }
+            case "lru":
+            case "fifo": {
+                final LinkedHashMap<Long, Boolean> entries =
+                    new LinkedHashMap<Long, Boolean>(16, 0.75f, name.equals("lru")) {
+                        @Override
+                        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                            return size() > size;
+                        }
+                    };
+                return new Policy() {
+                    @Override
+                    public boolean get(long keyHash, long timeMillis) {
+                        if (entries.get(keyHash) != null) {
+                            return true;
+                        }
+                        if (size > 0) {
+                            entries.put(keyHash, Boolean.TRUE);
+                        }
+                        return false;
+                    }
+
+                    @Override
+                    public void invalidate(long keyHash) {
+                        entries.remove(keyHash);
+                    }
+                };
+            }
+            case "clock":
+                return new Policy() {
+                    private final long[] keys = new long[size];
+                    private final boolean[] referenced = new boolean[size];
+                    private final HashMap<Long, Integer> slots = new HashMap<>();
+                    private int hand = 0;
+                    private int filled = 0;
+
+                    @Override
+                    public boolean get(long keyHash, long timeMillis) {
+                        Integer slot = slots.get(keyHash);
+                        if (slot != null) {
+                            referenced[slot] = true;
+                            return true;
+                        }
+                        if (size == 0) {
+                            return false;
+                        }
+                        if (filled == size) {
+                            // Give referenced entries a second chance
+                            while (referenced[hand]) {
+                                referenced[hand] = false;
+                                hand = (hand + 1) % size;
+                            }
+                            // Invalidated slots are free, and their key may live elsewhere now
+                            Integer owner = slots.get(keys[hand]);
+                            if (owner != null && owner == hand) {
+                                slots.remove(keys[hand]);
+                            }
+                        }
+                        else {
+                            hand = filled++;
+                        }
+                        keys[hand] = keyHash;
+                        referenced[hand] = false;
+                        slots.put(keyHash, hand);
+                        hand = (hand + 1) % size;
+                        return false;
+                    }
+
+                    @Override
+                    public void invalidate(long keyHash) {
+                        Integer slot = slots.remove(keyHash);
+                        if (slot != null) {
+                            referenced[slot] = false;
+                        }
+                    }
+                };
+            default:
+                throw new IllegalArgumentException("Unknown policy: " + name);
+        }
+    }
+
+    /**
+     * Returns powers of two from 16 up to the first one covering every distinct key
+     */
+    static int[] defaultSizes(Trace trace) {
+        int distinct = Math.max(1, trace.distinctKeys());
+        List<Integer> sizes = new ArrayList<>();
+        for (int size = 16; ; size *= 2) {
+            sizes.add(size);
+            if (size >= distinct) {
+                break;
+            }
+        }
+        int[] result = new int[sizes.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = sizes.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Prints hit ratio curves as CSV (policy,size,gets,hits,hitRatio).
+     * Arguments are name=value pairs: trace (required), policies
+     * (comma-separated), sizes (comma-separated), expiryMillis, threads.
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("Expected name=value, got " + arg);
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        if (!options.containsKey("trace")) {
+            throw new IllegalArgumentException("Missing trace=<file>");
+        }
+
+        Trace trace = read(new File(options.get("trace")));
+        List<String> policies = options.containsKey("policies")
+            ? Arrays.asList(options.get("policies").split(","))
+            : POLICIES;
+        int[] sizes;
+        if (options.containsKey("sizes")) {
+            String[] parts = options.get("sizes").split(",");
+            sizes = new int[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                sizes[i] = Integer.parseInt(parts[i].trim());
+            }
+        }
+        else {
+            sizes = defaultSizes(trace);
+        }
+        long expiryMillis = Long.parseLong(
+            options.containsKey("expiryMillis") ? options.get("expiryMillis") : "60000");
+        int threads = options.containsKey("threads")
+            ? Integer.parseInt(options.get("threads"))
+            : Runtime.getRuntime().availableProcessors();
+
+        System.out.println("policy,size,gets,hits,hitRatio");
+        for (Result result : simulateAll(trace, policies, sizes, expiryMillis, threads)) {
+            System.out.println(String.format(Locale.ROOT, "%s,%d,%d,%d,%.4f",
+                result.policy, result.size, result.gets, result.hits, result.hitRatio()));
+        }
+    }
+}
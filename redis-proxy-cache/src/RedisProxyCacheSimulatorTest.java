@@ -0,0 +1,110 @@
+package src;
+
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for trace recording and the offline eviction policy simulator.
+ */
+public class RedisProxyCacheSimulatorTest {
+    /**
+     * Test that a recorded trace reads back in order
+     */
+    @Test
+    public void testRecordAndRead() throws Exception {
+        System.out.println("Running testRecordAndRead");
+
+        File file = File.createTempFile("proxy", ".trace");
+        file.deleteOnExit();
+        // Small buffers so the background writer has to hand several over
+        RedisProxyTraceRecorder recorder = new RedisProxyTraceRecorder(file, 130, 64);
+        for (int i = 0; i < 100; i++) {
+            recorder.record(RedisProxyTraceRecorder.OP_GET, ("key" + (i % 7)).getBytes());
+        }
+        recorder.record(RedisProxyTraceRecorder.OP_SET, "key0".getBytes());
+        recorder.close();
+
+        RedisProxyCacheSimulator.Trace trace = RedisProxyCacheSimulator.read(file);
+        assertEquals(trace.length(), 101);
+        assertEquals(trace.distinctKeys(), 7);
+        assertEquals(trace.keyHashes[3], RedisProxyTraceRecorder.hash("key3".getBytes()));
+        assertEquals(trace.ops[100], RedisProxyTraceRecorder.OP_SET);
+        assertEquals(recorder.droppedRecords(), 0);
+    }
+
+    /**
+     * Test the policies on a cyclic scan, where LRU and FIFO always miss
+     * once the loop is larger than the cache
+     */
+    @Test
+    public void testPoliciesOnScan() throws Exception {
+        System.out.println("Running testPoliciesOnScan");
+
+        int length = 1000;
+        byte[] ops = new byte[length];
+        long[] keys = new long[length];
+        long[] times = new long[length];
+        for (int i = 0; i < length; i++) {
+            keys[i] = i % 10;
+            times[i] = i;
+        }
+        RedisProxyCacheSimulator.Trace trace = new RedisProxyCacheSimulator.Trace(ops, keys, times);
+
+        List<RedisProxyCacheSimulator.Result> results = RedisProxyCacheSimulator.simulateAll(
+            trace, RedisProxyCacheSimulator.POLICIES, new int[] {5, 10}, 100000, 2);
+        assertEquals(results.size(), 8);
+        for (RedisProxyCacheSimulator.Result result : results) {
+            assertEquals(result.gets, length);
+            if (result.size == 10) {
+                // Only the first pass over the loop misses
+                assertEquals(result.hits, length - 10);
+            }
+            else if (!result.policy.equals("clock")) {
+                assertEquals(result.hits, 0);
+            }
+        }
+    }
+
+    /**
+     * Test that a set invalidates the key under every policy, as it does in
+     * the proxy
+     */
+    @Test
+    public void testSetInvalidates() throws Exception {
+        System.out.println("Running testSetInvalidates");
+
+        // get a, get a, set a, get a, get b, get a
+        byte[] ops = {0, 0, 1, 0, 0, 0};
+        long[] keys = {1, 1, 1, 1, 2, 1};
+        long[] times = new long[ops.length];
+        RedisProxyCacheSimulator.Trace trace = new RedisProxyCacheSimulator.Trace(ops, keys, times);
+
+        for (RedisProxyCacheSimulator.Result result : RedisProxyCacheSimulator.simulateAll(
+                trace, RedisProxyCacheSimulator.POLICIES, new int[] {2}, 100000, 1)) {
+            assertEquals(result.gets, 5);
+            assertEquals(result.policy, result.hits, 2);
+        }
+    }
+
+    /**
+     * Test that the proxy policy honours the expiry on trace time
+     */
+    @Test
+    public void testProxyPolicyExpiry() {
+        System.out.println("Running testProxyPolicyExpiry");
+
+        // The same key every 100 ms of trace time
+        byte[] ops = new byte[10];
+        long[] keys = new long[10];
+        long[] times = new long[10];
+        for (int i = 0; i < 10; i++) {
+            times[i] = i * 100;
+        }
+        RedisProxyCacheSimulator.Trace trace = new RedisProxyCacheSimulator.Trace(ops, keys, times);
+
+        assertEquals(RedisProxyCacheSimulator.simulate(trace, "proxy", 10, 1000).hits, 9);
+        assertEquals(RedisProxyCacheSimulator.simulate(trace, "proxy", 10, 50).hits, 0);
+    }
+}
@@ -0,0 +1,137 @@
+package src;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Point-in-time copy of a RedisProxyCache's entries, which can be written to
+ * a file and loaded back into a cache, so a restarted proxy starts warm.
+ *
+ * The file holds a header (magic, version, snapshot time in epoch millis)
+ * followed by the entries from the least to the most recently used, each as
+ * its age in milliseconds at snapshot time, then the key and the value as
+ * length-prefixed raw bytes.
+ */
+public class RedisProxyCacheSnapshot {
+    public static final int MAGIC = 0x5250534e; // "RPSN"
+    public static final int VERSION = 1;
+
+    private final long snapshotTimeMillis;
+    private final List<RedisProxyKey> keys = new ArrayList<>();
+    private final List<byte[]> values = new ArrayList<>();
+    private final List<Boolean> compressed = new ArrayList<>();
+    private final List<Long> ages = new ArrayList<>();
+
+    private RedisProxyCacheSnapshot(long snapshotTimeMillis) {
+        this.snapshotTimeMillis = snapshotTimeMillis;
+    }
+
+    /**
+     * Copies the cache's live entries in recency order. This only copies
+     * references, so it is cheap enough to do while holding the cache's lock;
+     * write the snapshot out afterwards. Compressed values are decompressed
+     * when written, so the file does not depend on the cache's codec.
+     */
+    public static RedisProxyCacheSnapshot capture(RedisProxyCache cache) {
+        final RedisProxyCacheSnapshot snapshot = new RedisProxyCacheSnapshot(cache.currentTimeMillis());
+        cache.forEachFromLeastRecent(new RedisProxyCache.EntryVisitor() {
+            @Override
+            public void visit(RedisProxyKey key, byte[] value, boolean compressed, long lastUsedTimeMillis) {
+                snapshot.keys.add(key);
+                snapshot.values.add(value);
+                snapshot.compressed.add(compressed);
+                snapshot.ages.add(Math.max(0, snapshot.snapshotTimeMillis - lastUsedTimeMillis));
+            }
+        });
+        return snapshot;
+    }
+
+    /**
+     * Returns the number of entries in the snapshot
+     */
+    public int size() {
+        return keys.size();
+    }
+
+    /**
+     * Writes the snapshot to the file, replacing it atomically so that a
+     * crash while writing leaves the previous snapshot intact
+     */
+    public void writeTo(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(snapshotTimeMillis);
+            for (int i = 0; i < keys.size(); i++) {
+                out.writeLong(ages.get(i));
+                writeBytes(out, keys.get(i).bytes());
+                byte[] value = values.get(i);
+                writeBytes(out, compressed.get(i) ? RedisProxyCompressionCodec.decompress(value) : value);
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads a snapshot file into the cache through a memory map, skipping
+     * entries that have expired since the snapshot was taken, counting the
+     * time the proxy was down. Returns the number of entries loaded.
+     * If the cache is smaller than the snapshot, the least recently used
+     * entries are evicted as usual.
+     */
+    public static int load(File file, RedisProxyCache cache) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 16 || buffer.getInt() != MAGIC) {
+                throw new IOException("Not a cache snapshot: " + file);
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+            long snapshotTimeMillis = buffer.getLong();
+            long now = cache.currentTimeMillis();
+            long downtimeMillis = Math.max(0, now - snapshotTimeMillis);
+            long expiryMillis = cache.globalExpiryMillis();
+
+            int loaded = 0;
+            try {
+                while (buffer.hasRemaining()) {
+                    long age = buffer.getLong() + downtimeMillis;
+                    RedisProxyKey key = new RedisProxyKey(readBytes(buffer));
+                    byte[] value = readBytes(buffer);
+                    if (age > expiryMillis) {
+                        continue;
+                    }
+                    cache.restore(key, value, now - age);
+                    loaded++;
+                }
+            }
+            catch (BufferUnderflowException e) {
+                throw new IOException("Truncated cache snapshot: " + file);
+            }
+            return loaded;
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,170 @@
+package src;
+
+import java.io.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for cache snapshots used for warm restarts.
+ */
+public class RedisProxyCacheSnapshotTest {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("proxy", ".snapshot");
+        file.deleteOnExit();
+    }
+
+    /**
+     * Test that a restored cache holds the same entries in the same recency order
+     */
+    @Test
+    public void testRoundTripKeepsOrder() throws IOException {
+        System.out.println("Running testRoundTripKeepsOrder");
+
+        final long[] now = {1000};
+        RedisProxyCache cache = new RedisProxyCache(4, 10000, () -> now[0]);
+        cache.set("a", "1");
+        now[0] += 10;
+        cache.set("b", "2");
+        now[0] += 10;
+        cache.set("c", "\u00e9\u6f22");
+        now[0] += 10;
+        cache.get("a");
+        // FRONT a c b BACK
+
+        RedisProxyCacheSnapshot snapshot = RedisProxyCacheSnapshot.capture(cache);
+        assertEquals(snapshot.size(), 3);
+        snapshot.writeTo(file);
+
+        RedisProxyCache restored = new RedisProxyCache(4, 10000, () -> now[0]);
+        assertEquals(RedisProxyCacheSnapshot.load(file, restored), 3);
+        assertEquals(restored.get("c"), "\u00e9\u6f22");
+        assertEquals(restored.size(), 3);
+
+        // Adding two more evicts the least recently used ones, b then a
+        restored.set("d", "4");
+        restored.set("e", "5");
+        assertFalse(restored.containsValidEntry("b"));
+        assertTrue(restored.containsValidEntry("a"));
+        restored.set("f", "6");
+        assertFalse(restored.containsValidEntry("a"));
+        assertTrue(restored.containsValidEntry("c"));
+    }
+
+    /**
+     * Test that entries that expired while the proxy was down are skipped
+     */
+    @Test
+    public void testExpiredEntriesSkipped() throws IOException {
+        System.out.println("Running testExpiredEntriesSkipped");
+
+        final long[] now = {1000};
+        RedisProxyCache cache = new RedisProxyCache(10, 100, () -> now[0]);
+        cache.set("old", "1");
+        now[0] += 60;
+        cache.set("new", "2");
+        RedisProxyCacheSnapshot.capture(cache).writeTo(file);
+
+        // Down for 50 ms: old is now 110 ms old, new 50 ms
+        now[0] += 50;
+        RedisProxyCache restored = new RedisProxyCache(10, 100, () -> now[0]);
+        assertEquals(RedisProxyCacheSnapshot.load(file, restored), 1);
+        assertFalse(restored.containsValidEntry("old"));
+        assertTrue(restored.containsValidEntry("new"));
+
+        // And the restored entry keeps its age
+        now[0] += 51;
+        assertFalse(restored.containsValidEntry("new"));
+    }
+
+    /**
+     * Test that a file that is not a snapshot is rejected
+     */
+    @Test(expected = IOException.class)
+    public void testRejectsOtherFiles() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[32]);
+        }
+        RedisProxyCacheSnapshot.load(file, new RedisProxyCache(10, 100));
+    }
+
+    /**
+     * Test that a proxy restarted with snapshots enabled starts with a warm cache
+     */
+    @Test
+    public void testProxyWarmRestart() throws IOException {
+        System.out.println("Running testProxyWarmRestart");
+
+        file.delete();
+        EmbeddedRedisServer server = new EmbeddedRedisServer();
+        RedisProxy proxy = new RedisProxy(server.getHost(), server.getPort(), "testPassword", 10, 10000);
+        assertEquals(proxy.enableSnapshots(file, 0), 0);
+        proxy.set("a", "1");
+        proxy.get("a");
+        proxy.close();
+
+        RedisProxy restarted = new RedisProxy(server.getHost(), server.getPort(), "testPassword", 10, 10000);
+        assertEquals(restarted.enableSnapshots(file, 0), 1);
+        assertTrue(restarted.cacheContainsValidEntry("a"));
+        restarted.close();
+        server.close();
+    }
+
+    /**
+     * Test that a truncated snapshot does not stop the proxy from starting,
+     * and leaves no partly loaded cache behind
+     */
+    @Test
+    public void testProxyStartsColdOnCorruptSnapshot() throws IOException {
+        System.out.println("Running testProxyStartsColdOnCorruptSnapshot");
+
+        EmbeddedRedisServer server = new EmbeddedRedisServer();
+        RedisProxy proxy = new RedisProxy(server.getHost(), server.getPort(), null, 10, 10000);
+        proxy.set("a", "1");
+        proxy.set("b", "2");
+        proxy.get("a");
+        proxy.get("b");
+        proxy.snapshotCache(file);
+        proxy.close();
+        // Cut into the last entry, so the first one loads before the failure
+        try (RandomAccessFile truncated = new RandomAccessFile(file, "rw")) {
+            truncated.setLength(truncated.length() - 1);
+        }
+
+        RedisProxy restarted = new RedisProxy(server.getHost(), server.getPort(), null, 10, 10000);
+        assertEquals(restarted.enableSnapshots(file, 0), 0);
+        assertEquals(restarted.cacheSize(), 0);
+        assertEquals(restarted.get("a"), "1");
+        restarted.close();
+        server.close();
+    }
+
+    /**
+     * Test that a snapshot copied before the final one, as a periodic one
+     * racing close can be, does not overwrite it
+     */
+    @Test
+    public void testOlderSnapshotNotWrittenOverNewer() throws IOException {
+        System.out.println("Running testOlderSnapshotNotWrittenOverNewer");
+
+        file.delete();
+        EmbeddedRedisServer server = new EmbeddedRedisServer();
+        RedisProxy proxy = new RedisProxy(server.getHost(), server.getPort(), null, 10, 10000);
+        proxy.enableSnapshots(file, 0);
+        proxy.set("a", "1");
+        proxy.get("a");
+        RedisProxy.CapturedSnapshot stale = proxy.captureSnapshot();
+        proxy.set("a", "2");
+        proxy.get("a");
+        proxy.close();
+        assertFalse(proxy.writeSnapshot(stale, file));
+
+        RedisProxy restarted = new RedisProxy(server.getHost(), server.getPort(), null, 10, 10000);
+        server.close();
+        assertEquals(restarted.enableSnapshots(file, 0), 1);
+        assertEquals(restarted.get("a"), "2");
+        restarted.close();
+    }
+}
@@ -0,0 +1,52 @@
+package src;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the cache on its own, without a proxy in front of it.
+ */
+public class RedisProxyCacheTest {
+    /**
+     * Test that a FIFO cache evicts in insertion order and expires entries
+     * a fixed time after they were set
+     */
+    @Test
+    public void testFifoPolicy() {
+        System.out.println("Running testFifoPolicy");
+
+        final long[] now = {0};
+        RedisProxyCache cache = new RedisProxyCache(2, 100, RedisProxyCache.EvictionPolicy.FIFO, () -> now[0]);
+        cache.set("a", "1");
+        cache.set("b", "2");
+        now[0] = 60;
+        assertEquals(cache.get("a"), "1");
+        cache.set("c", "3");
+        assertFalse(cache.containsValidEntry("a"));
+
+        now[0] = 120;
+        assertNull(cache.get("b"));
+        assertEquals(cache.get("c"), "3");
+    }
+
+    /**
+     * Test that removing by prefix drops only the matching keys
+     */
+    @Test
+    public void testRemoveKeysWithPrefix() {
+        System.out.println("Running testRemoveKeysWithPrefix");
+
+        RedisProxyCache cache = new RedisProxyCache(10, 10000, RedisProxyCache.EvictionPolicy.LRU);
+        cache.set("session:1", "a");
+        cache.set("session:2", "b");
+        cache.set("sess", "c");
+        cache.set("catalog:1", "d");
+
+        assertEquals(cache.removeKeysWithPrefix("session:".getBytes()), 2);
+        assertFalse(cache.containsValidEntry("session:1"));
+        assertFalse(cache.containsValidEntry("session:2"));
+        assertTrue(cache.containsValidEntry("sess"));
+        assertTrue(cache.containsValidEntry("catalog:1"));
+        assertEquals(cache.size(), 2);
+    }
+}
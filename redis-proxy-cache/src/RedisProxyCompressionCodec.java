@@ -0,0 +1,210 @@
+package src;
+
+import java.lang.management.*;
+import java.nio.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Compresses large cache values with DEFLATE, so the same heap holds more
+ * entries. Values under the size threshold are stored as they are, and so are
+ * values that do not shrink to at most maxStoredRatio of their size;
+ * compression gives up as soon as the output passes that limit.
+ *
+ * A compressed value is stored as its uncompressed length (4 bytes) followed
+ * by the zlib stream. The codec keeps counters of what it compressed and the
+ * CPU time it spent, for the proxy's metrics. Not thread-safe; RedisProxy
+ * serialises access to its cache.
+ */
+public class RedisProxyCompressionCodec {
+    public static final int DEFAULT_THRESHOLD_BYTES = 1024;
+    public static final double DEFAULT_MAX_STORED_RATIO = 0.9;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME_SUPPORTED = THREADS.isCurrentThreadCpuTimeSupported();
+
+    private final int thresholdBytes;
+    private final double maxStoredRatio;
+    private final Deflater deflater;
+    private final Inflater inflater = new Inflater();
+    private byte[] scratch = new byte[0];
+
+    private long valuesCompressed;
+    private long valuesSkipped;
+    private long rawBytesCompressed;
+    private long storedBytesCompressed;
+    private long compressCpuNanos;
+    private long decompressions;
+    private long decompressCpuNanos;
+
+    public RedisProxyCompressionCodec() {
+        this(DEFAULT_THRESHOLD_BYTES, DEFAULT_MAX_STORED_RATIO, Deflater.BEST_SPEED);
+    }
+
+    /**
+     * Compresses values of at least thresholdBytes, keeping the result only if
+     * it is at most maxStoredRatio of the original size
+     */
+    public RedisProxyCompressionCodec(int thresholdBytes, double maxStoredRatio, int level)
+            throws IllegalArgumentException {
+        if (thresholdBytes < 0) {
+            throw new IllegalArgumentException("Compression threshold cannot be negative");
+        }
+        if (maxStoredRatio <= 0 || maxStoredRatio > 1) {
+            throw new IllegalArgumentException("Maximum stored ratio must be in (0, 1]");
+        }
+        this.thresholdBytes = thresholdBytes;
+        this.maxStoredRatio = maxStoredRatio;
+        this.deflater = new Deflater(level);
+    }
+
+    /**
+     * Returns the compressed form of the value, or the value itself if it is
+     * too small or does not compress well enough
+     */
+    public byte[] encode(byte[] value) {
+        if (value.length < thresholdBytes || value.length == 0) {
+            return value;
+        }
+        long start = cpuTimeNanos();
+
+        int limit = 4 + (int) (value.length * maxStoredRatio);
+        if (scratch.length < limit) {
+            scratch = new byte[limit];
+        }
+        deflater.reset();
+        deflater.setInput(value);
+        deflater.finish();
+        int length = 4;
+        while (!deflater.finished() && length < limit) {
+            length += deflater.deflate(scratch, length, limit - length);
+        }
+        boolean fits = deflater.finished();
+
+        byte[] stored = null;
+        if (fits) {
+            stored = Arrays.copyOf(scratch, length);
+            ByteBuffer.wrap(stored).putInt(value.length);
+            valuesCompressed++;
+            rawBytesCompressed += value.length;
+            storedBytesCompressed += length;
+        }
+        else {
+            valuesSkipped++;
+        }
+        compressCpuNanos += cpuTimeNanos() - start;
+        return fits ? stored : value;
+    }
+
+    /**
+     * Returns the original value for a value returned compressed by encode
+     */
+    public byte[] decode(byte[] stored) {
+        long start = cpuTimeNanos();
+        byte[] value = inflate(inflater, stored);
+        decompressions++;
+        decompressCpuNanos += cpuTimeNanos() - start;
+        return value;
+    }
+
+    /**
+     * Decodes a compressed value without a codec instance, and without
+     * counting it; safe to call from any thread
+     */
+    public static byte[] decompress(byte[] stored) {
+        Inflater inflater = new Inflater();
+        try {
+            return inflate(inflater, stored);
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] inflate(Inflater inflater, byte[] stored) {
+        byte[] value = new byte[ByteBuffer.wrap(stored).getInt()];
+        inflater.reset();
+        inflater.setInput(stored, 4, stored.length - 4);
+        try {
+            int length = 0;
+            while (length < value.length) {
+                int n = inflater.inflate(value, length, value.length - length);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IllegalStateException("Truncated compressed value");
+                }
+                length += n;
+            }
+        }
+        catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt compressed value", e);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the number of values stored compressed
+     */
+    public long valuesCompressed() {
+        return valuesCompressed;
+    }
+
+    /**
+     * Returns the number of values over the threshold stored uncompressed
+     * because they did not compress well enough
+     */
+    public long valuesSkipped() {
+        return valuesSkipped;
+    }
+
+    /**
+     * Returns the original size over the stored size of the values that were
+     * compressed, or 1 if none were
+     */
+    public double compressionRatio() {
+        return storedBytesCompressed == 0 ? 1 : (double) rawBytesCompressed / storedBytesCompressed;
+    }
+
+    /**
+     * Returns the bytes saved by compression so far
+     */
+    public long bytesSaved() {
+        return rawBytesCompressed - storedBytesCompressed;
+    }
+
+    /**
+     * Returns the CPU time spent compressing, including attempts that were skipped
+     */
+    public long compressCpuNanos() {
+        return compressCpuNanos;
+    }
+
+    /**
+     * Returns the number of values decompressed on get
+     */
+    public long decompressions() {
+        return decompressions;
+    }
+
+    /**
+     * Returns the CPU time spent decompressing
+     */
+    public long decompressCpuNanos() {
+        return decompressCpuNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT,
+            "compressed=%d skipped=%d ratio=%.2f saved=%dB compressCpu=%dus "
+                + "decompressions=%d decompressCpu=%dus",
+            valuesCompressed, valuesSkipped, compressionRatio(), bytesSaved(),
+            compressCpuNanos / 1000, decompressions, decompressCpuNanos / 1000);
+    }
+
+    /**
+     * CPU time of the current thread, or wall time where that is unsupported
+     */
+    private static long cpuTimeNanos() {
+        return CPU_TIME_SUPPORTED ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+}
@@ -0,0 +1,99 @@
+package src;
+
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for compression of cached values.
+ */
+public class RedisProxyCompressionCodecTest {
+    private static byte[] json(int records) {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < records; i++) {
+            builder.append("{\"id\":").append(i).append(",\"name\":\"user").append(i)
+                .append("\",\"active\":true,\"roles\":[\"reader\",\"writer\"]},");
+        }
+        return builder.append("]").toString().getBytes();
+    }
+
+    /**
+     * Test that a compressible value round trips and is counted
+     */
+    @Test
+    public void testCompressesLargeValues() {
+        System.out.println("Running testCompressesLargeValues");
+
+        RedisProxyCompressionCodec codec = new RedisProxyCompressionCodec();
+        byte[] value = json(100);
+        byte[] stored = codec.encode(value);
+        assertNotSame(stored, value);
+        assertTrue(stored.length < value.length / 4);
+        assertArrayEquals(codec.decode(stored), value);
+        assertArrayEquals(RedisProxyCompressionCodec.decompress(stored), value);
+
+        assertEquals(codec.valuesCompressed(), 1);
+        assertEquals(codec.bytesSaved(), value.length - stored.length);
+        assertTrue(codec.compressionRatio() > 4);
+        assertEquals(codec.decompressions(), 1);
+    }
+
+    /**
+     * Test that small and incompressible values are stored as they are
+     */
+    @Test
+    public void testSkipsSmallAndIncompressibleValues() {
+        System.out.println("Running testSkipsSmallAndIncompressibleValues");
+
+        RedisProxyCompressionCodec codec = new RedisProxyCompressionCodec();
+        byte[] small = json(1);
+        assertSame(codec.encode(small), small);
+
+        byte[] random = new byte[4096];
+        new Random(42).nextBytes(random);
+        assertSame(codec.encode(random), random);
+
+        assertEquals(codec.valuesCompressed(), 0);
+        assertEquals(codec.valuesSkipped(), 1);
+        assertEquals(codec.compressionRatio(), 1, 0);
+    }
+
+    /**
+     * Test that the cache returns the original values with compression on,
+     * and that snapshots hold them uncompressed
+     */
+    @Test
+    public void testCacheWithCompression() throws IOException {
+        System.out.println("Running testCacheWithCompression");
+
+        RedisProxyCache cache = new RedisProxyCache(4, 10000);
+        RedisProxyCompressionCodec codec = new RedisProxyCompressionCodec(16, 0.9, 1);
+        cache.setCompressionCodec(codec);
+
+        byte[] value = json(20);
+        cache.set(RedisProxyKey.of("a"), value);
+        cache.set("b", "short");
+        assertArrayEquals(cache.get(RedisProxyKey.of("a")), value);
+        assertEquals(cache.get("b"), "short");
+        assertEquals(codec.valuesCompressed(), 1);
+
+        File file = File.createTempFile("proxy", ".snapshot");
+        file.deleteOnExit();
+        RedisProxyCacheSnapshot.capture(cache).writeTo(file);
+        RedisProxyCache restored = new RedisProxyCache(4, 10000);
+        assertEquals(RedisProxyCacheSnapshot.load(file, restored), 2);
+        assertArrayEquals(restored.get(RedisProxyKey.of("a")), value);
+
+        // Values stored before the codec was removed still read back
+        cache.setCompressionCodec(null);
+        assertArrayEquals(cache.get(RedisProxyKey.of("a")), value);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRatio() {
+        System.out.println("Running testInvalidRatio");
+
+        new RedisProxyCompressionCodec(0, 1.5, 1);
+    }
+}
@@ -0,0 +1,196 @@
+package src;
+
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * Finds the most requested keys with the Space-Saving algorithm, in bounded
+ * memory. A fixed number of counters is kept; a key without a counter takes
+ * over the one with the lowest count, inheriting that count as its possible
+ * overestimate. Any key requested more often than 1/counters of the time is
+ * guaranteed to hold a counter.
+ *
+ * Counts are kept per tumbling window of windowMillis, so keys that cool
+ * down drop out. The counters live in a min-heap ordered by count, so each
+ * request costs a hash lookup and O(log counters) swaps.
+ * Not thread-safe; RedisProxy serialises access.
+ */
+public class RedisProxyHotKeys {
+    public static final int DEFAULT_COUNTERS = 1024;
+    public static final long DEFAULT_WINDOW_MILLIS = 10000;
+
+    /**
+     * A key's estimated request count in a window. The true count is between
+     * count - error and count.
+     */
+    public static final class HotKey {
+        public final String key;
+        public final long count;
+        public final long error;
+        public final double ratePerSecond;
+        final RedisProxyKey cacheKey;
+
+        HotKey(RedisProxyKey cacheKey, long count, long error, double ratePerSecond) {
+            this.key = cacheKey.toString();
+            this.count = count;
+            this.error = error;
+            this.ratePerSecond = ratePerSecond;
+            this.cacheKey = cacheKey;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s count=%d error=%d rate=%.1f/s",
+                key, count, error, ratePerSecond);
+        }
+    }
+
+    private static final class Counter {
+        RedisProxyKey key;
+        long count;
+        long error;
+        int index;
+    }
+
+    private final HashMap<RedisProxyKey, Counter> counters;
+    private final Counter[] heap;
+    private int size;
+
+    private final long windowMillis;
+    private final LongSupplier clock;
+    private long windowStartMillis;
+
+    /**
+     * Estimates for the last complete window, highest count first
+     */
+    private List<HotKey> lastWindow;
+
+    public RedisProxyHotKeys(int counters, long windowMillis) throws IllegalArgumentException {
+        this(counters, windowMillis, System::currentTimeMillis);
+    }
+
+    RedisProxyHotKeys(int counters, long windowMillis, LongSupplier clock) throws IllegalArgumentException {
+        if (counters <= 0) {
+            throw new IllegalArgumentException("Number of counters must be positive");
+        }
+        if (windowMillis <= 0) {
+            throw new IllegalArgumentException("Window must be positive");
+        }
+        this.counters = new HashMap<>(counters * 2);
+        this.heap = new Counter[counters];
+        this.windowMillis = windowMillis;
+        this.clock = clock;
+        this.windowStartMillis = clock.getAsLong();
+    }
+
+    /**
+     * Counts a request for the key. Returns true if this request started a
+     * new window, so the previous window's estimates have just changed.
+     */
+    public boolean record(RedisProxyKey key) {
+        long now = this.clock.getAsLong();
+        boolean rolled = false;
+        if (now - this.windowStartMillis >= this.windowMillis) {
+            this.lastWindow = estimates(now);
+            this.counters.clear();
+            Arrays.fill(this.heap, 0, this.size, null);
+            this.size = 0;
+            this.windowStartMillis = now;
+            rolled = true;
+        }
+
+        Counter counter = this.counters.get(key);
+        if (counter != null) {
+            counter.count++;
+            siftDown(counter.index);
+        }
+        else if (this.size < this.heap.length) {
+            // Counters outlive the request, so they keep their own copy of the key
+            counter = new Counter();
+            counter.key = key.copy();
+            counter.count = 1;
+            counter.index = this.size;
+            this.heap[this.size++] = counter;
+            this.counters.put(counter.key, counter);
+            siftUp(counter.index);
+        }
+        else {
+            // Take over the counter with the lowest count
+            counter = this.heap[0];
+            this.counters.remove(counter.key);
+            counter.key = key.copy();
+            counter.error = counter.count;
+            counter.count++;
+            this.counters.put(counter.key, counter);
+            siftDown(0);
+        }
+        return rolled;
+    }
+
+    /**
+     * Returns up to count of the most requested keys, highest first, from the
+     * last complete window, or from the current one until a window completes
+     */
+    public List<HotKey> topKeys(int count) {
+        List<HotKey> keys = this.lastWindow != null
+            ? this.lastWindow
+            : estimates(this.clock.getAsLong());
+        return new ArrayList<>(keys.subList(0, Math.min(count, keys.size())));
+    }
+
+    /**
+     * Returns the current window's counters as estimates, highest count first
+     */
+    private List<HotKey> estimates(long now) {
+        double seconds = Math.max(1, now - this.windowStartMillis) / 1000.0;
+        List<HotKey> keys = new ArrayList<>(this.size);
+        for (int i = 0; i < this.size; i++) {
+            Counter counter = this.heap[i];
+            keys.add(new HotKey(counter.key, counter.count, counter.error, counter.count / seconds));
+        }
+        Collections.sort(keys, new Comparator<HotKey>() {
+            @Override
+            public int compare(HotKey a, HotKey b) {
+                return Long.compare(b.count, a.count);
+            }
+        });
+        return keys;
+    }
+
+    private void siftUp(int index) {
+        Counter counter = this.heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (this.heap[parent].count <= counter.count) {
+                break;
+            }
+            place(this.heap[parent], index);
+            index = parent;
+        }
+        place(counter, index);
+    }
+
+    private void siftDown(int index) {
+        Counter counter = this.heap[index];
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= this.size) {
+                break;
+            }
+            if (child + 1 < this.size && this.heap[child + 1].count < this.heap[child].count) {
+                child++;
+            }
+            if (counter.count <= this.heap[child].count) {
+                break;
+            }
+            place(this.heap[child], index);
+            index = child;
+        }
+        place(counter, index);
+    }
+
+    private void place(Counter counter, int index) {
+        this.heap[index] = counter;
+        counter.index = index;
+    }
+}
@@ -0,0 +1,146 @@
+package src;
+
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for hot key detection and hot key protection in the cache.
+ */
+public class RedisProxyHotKeysTest {
+    /**
+     * Test that heavy hitters in a long tail are found with few counters
+     */
+    @Test
+    public void testFindsHeavyHitters() {
+        System.out.println("Running testFindsHeavyHitters");
+
+        RedisProxyHotKeys hotKeys = new RedisProxyHotKeys(32, 1000000);
+        RedisProxyKeyGenerator tail = RedisProxyKeyGenerator.uniform(100000, 42);
+        for (int i = 0; i < 100000; i++) {
+            if (i % 10 == 0) {
+                hotKeys.record(RedisProxyKey.of("hot1"));
+            }
+            else if (i % 20 == 1) {
+                hotKeys.record(RedisProxyKey.of("hot2"));
+            }
+            else {
+                hotKeys.record(RedisProxyKey.of(tail.nextKey()));
+            }
+        }
+
+        List<RedisProxyHotKeys.HotKey> top = hotKeys.topKeys(2);
+        assertEquals(top.size(), 2);
+        assertEquals(top.get(0).key, "hot1");
+        assertEquals(top.get(1).key, "hot2");
+        // The estimate never undercounts, and is off by at most its error
+        assertTrue(top.get(0).count >= 10000);
+        assertTrue(top.get(0).count - top.get(0).error <= 10000);
+    }
+
+    /**
+     * Test that estimates come from the last complete window, with rates
+     */
+    @Test
+    public void testWindows() {
+        System.out.println("Running testWindows");
+
+        final long[] now = {0};
+        RedisProxyHotKeys hotKeys = new RedisProxyHotKeys(4, 1000, () -> now[0]);
+        for (int i = 0; i < 500; i++) {
+            assertFalse(hotKeys.record(RedisProxyKey.of("a")));
+        }
+        now[0] = 500;
+        assertEquals(hotKeys.topKeys(1).get(0).ratePerSecond, 1000, 0.001);
+
+        now[0] = 1000;
+        assertTrue(hotKeys.record(RedisProxyKey.of("b")));
+        List<RedisProxyHotKeys.HotKey> top = hotKeys.topKeys(10);
+        assertEquals(top.size(), 1);
+        assertEquals(top.get(0).key, "a");
+        assertEquals(top.get(0).ratePerSecond, 500, 0.001);
+    }
+
+    /**
+     * Test that pinned hot keys survive eviction and get their own expiry
+     */
+    @Test
+    public void testCachePinning() {
+        System.out.println("Running testCachePinning");
+
+        final long[] now = {0};
+        RedisProxyCache cache = new RedisProxyCache(3, 100, () -> now[0]);
+        cache.set("hot", "1");
+        cache.set("b", "2");
+        cache.set("c", "3");
+        cache.setHotKeys(Collections.singleton(RedisProxyKey.of("hot")), true, 1000);
+
+        // "hot" is the least recently used, but "b" goes instead
+        cache.set("d", "4");
+        assertTrue(cache.containsValidEntry("hot"));
+        assertFalse(cache.containsValidEntry("b"));
+
+        now[0] = 500;
+        assertTrue(cache.containsValidEntry("hot"));
+        assertFalse(cache.containsValidEntry("c"));
+
+        cache.setHotKeys(Collections.<RedisProxyKey>emptySet(), false, 0);
+        assertFalse(cache.containsValidEntry("hot"));
+    }
+
+    /**
+     * Test that the proxy marks the top keys of a window as hot
+     */
+    @Test
+    public void testProxyHotKeys() throws Exception {
+        System.out.println("Running testProxyHotKeys");
+
+        try (EmbeddedRedisServer server = new EmbeddedRedisServer();
+             RedisProxy proxy = new RedisProxy(server.getHost(), server.getPort(), null, 2, 10000)) {
+            proxy.enableHotKeyTracking(16, 50);
+            proxy.configureHotKeyProtection(1, true, 10000);
+            proxy.set("hot", "1");
+            for (int i = 0; i < 10; i++) {
+                proxy.get("hot");
+            }
+            Thread.sleep(60);
+            // Ends the window, making "hot" hot; the cold keys cannot evict it
+            for (int i = 0; i < 5; i++) {
+                proxy.set("cold" + i, "v");
+                proxy.get("cold" + i);
+            }
+            assertTrue(proxy.cacheContainsValidEntry("hot"));
+            assertEquals(proxy.hotKeys(1).get(0).key, "hot");
+        }
+    }
+
+    /**
+     * Test that a partition added after a window ended protects the hot keys
+     * routed to it straight away
+     */
+    @Test
+    public void testProxyHotKeysInNewPartition() throws Exception {
+        System.out.println("Running testProxyHotKeysInNewPartition");
+
+        try (EmbeddedRedisServer server = new EmbeddedRedisServer();
+             RedisProxy proxy = new RedisProxy(server.getHost(), server.getPort(), null, 10, 10000)) {
+            proxy.enableHotKeyTracking(16, 200);
+            proxy.configureHotKeyProtection(1, true, 10000);
+            proxy.set("session:hot", "1");
+            for (int i = 0; i < 10; i++) {
+                proxy.get("session:hot");
+            }
+            Thread.sleep(210);
+            // Ends the window, making "session:hot" hot
+            proxy.get("other");
+
+            proxy.addCachePartition("session:", 2, 10000, RedisProxyCache.EvictionPolicy.LRU);
+            proxy.get("session:hot");
+            for (int i = 0; i < 5; i++) {
+                proxy.set("session:cold" + i, "v");
+                proxy.get("session:cold" + i);
+            }
+            assertTrue(proxy.cacheContainsValidEntry("session:hot"));
+        }
+    }
+}
@@ -0,0 +1,415 @@
+package src;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * Tells peer proxies which keys were set through this one, over UDP, so they
+ * can drop their cached copies, and applies the invalidations peers send.
+ *
+ * Keys are batched into datagrams, sent when a batch is full or batchDelayMillis
+ * after its first key, to every peer. Each sender numbers its batches, and a
+ * receiver that sees a number skipped knows it lost a batch, so it flushes
+ * everything it caches instead. Senders also send a heartbeat carrying their
+ * latest number every heartbeatMillis, so a lost batch is noticed even if no
+ * other follows it. A key too large for a datagram is sent as a flush. A
+ * sender heard from for the first time, or again after SENDER_TIMEOUT_HEARTBEATS
+ * heartbeats of silence, counts as a gap unless it starts at batch 1, since
+ * the batches before may have been lost.
+ *
+ * Datagrams are only accepted from the configured peers' addresses, and ones
+ * whose key count or key lengths do not fit the datagram are dropped whole.
+ *
+ * Datagram layout:
+ *   MAGIC (4 bytes), senderId (8), sequence (8), count (4, or -1 for a flush),
+ *   then count keys, each as its length (4) and bytes
+ */
+public class RedisProxyInvalidationChannel implements Closeable {
+    static final int MAGIC = 0x5250494e; // "RPIN"
+    static final int HEADER_BYTES = 24;
+    static final int FLUSH = -1;
+
+    /**
+     * Largest datagram sent, to stay within a typical Ethernet MTU
+     */
+    public static final int MAX_DATAGRAM_BYTES = 1400;
+    public static final long DEFAULT_BATCH_DELAY_MILLIS = 1;
+    public static final long DEFAULT_HEARTBEAT_MILLIS = 1000;
+
+    /**
+     * Heartbeats a sender may miss before it is forgotten
+     */
+    public static final int SENDER_TIMEOUT_HEARTBEATS = 10;
+
+    /**
+     * Applies invalidations received from peers, on the receiving thread
+     */
+    public interface Listener {
+        void invalidate(List<byte[]> keys);
+        void invalidateAll();
+    }
+
+    private final DatagramSocket socket;
+    private final Listener listener;
+    private final long batchDelayMillis;
+    private final long senderId = new Random().nextLong();
+    private volatile List<InetSocketAddress> peers = Collections.emptyList();
+    private volatile Set<InetSocketAddress> peerAddresses = Collections.emptySet();
+
+    /**
+     * The batch being filled, and the number of the last batch sent; guarded by this
+     */
+    private final ByteBuffer batch = ByteBuffer.allocate(MAX_DATAGRAM_BYTES);
+    private int batchCount;
+    private boolean flushPending;
+    private long sequence;
+
+    /**
+     * Last batch number seen from a sender, and when it was last heard from
+     */
+    private static final class SenderState {
+        long sequence;
+        long lastHeardMillis;
+    }
+
+    /**
+     * Senders heard from recently; only touched by the receiver
+     */
+    private final HashMap<Long, SenderState> senders = new HashMap<>();
+    private final long senderTimeoutMillis;
+    private final LongSupplier clock;
+    private long nextPruneMillis;
+
+    private final ScheduledExecutorService sender;
+    private final Thread receiver;
+
+    private volatile long batchesSent;
+    private volatile long batchesReceived;
+    private volatile long keysReceived;
+    private volatile long gapsDetected;
+    private volatile long datagramsRejected;
+
+    public RedisProxyInvalidationChannel(int port, Listener listener) throws SocketException {
+        this(port, listener, DEFAULT_BATCH_DELAY_MILLIS, DEFAULT_HEARTBEAT_MILLIS);
+    }
+    public RedisProxyInvalidationChannel(InetSocketAddress localAddress, Listener listener)
+            throws SocketException {
+        this(localAddress, listener, DEFAULT_BATCH_DELAY_MILLIS, DEFAULT_HEARTBEAT_MILLIS);
+    }
+
+    /**
+     * Listens on the given UDP port on every interface, or on an ephemeral
+     * port if it is 0; see getPort
+     */
+    public RedisProxyInvalidationChannel(int port, Listener listener, long batchDelayMillis,
+                                         long heartbeatMillis)
+            throws SocketException, IllegalArgumentException {
+        this(new InetSocketAddress(port), listener, batchDelayMillis, heartbeatMillis);
+    }
+
+    /**
+     * Listens on the given UDP address, such as a private interface only
+     */
+    public RedisProxyInvalidationChannel(InetSocketAddress localAddress, Listener listener,
+                                         long batchDelayMillis, long heartbeatMillis)
+            throws SocketException, IllegalArgumentException {
+        this(localAddress, listener, batchDelayMillis, heartbeatMillis, System::currentTimeMillis);
+    }
+
+    RedisProxyInvalidationChannel(InetSocketAddress localAddress, Listener listener, long batchDelayMillis,
+                                  long heartbeatMillis, LongSupplier clock)
+            throws SocketException, IllegalArgumentException {
+        if (batchDelayMillis < 0) {
+            throw new IllegalArgumentException("Batch delay cannot be negative");
+        }
+        if (heartbeatMillis <= 0) {
+            throw new IllegalArgumentException("Heartbeat interval must be positive");
+        }
+        this.socket = new DatagramSocket(localAddress);
+        this.listener = listener;
+        this.batchDelayMillis = batchDelayMillis;
+        this.senderTimeoutMillis = heartbeatMillis * SENDER_TIMEOUT_HEARTBEATS;
+        this.clock = clock;
+        this.batch.position(HEADER_BYTES);
+
+        this.sender = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "proxy-invalidation-sender");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.sender.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                sendHeartbeat();
+            }
+        }, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+
+        this.receiver = new Thread("proxy-invalidation-receiver") {
+            @Override
+            public void run() {
+                receive();
+            }
+        };
+        this.receiver.setDaemon(true);
+        this.receiver.start();
+    }
+
+    /**
+     * Returns the UDP port this channel listens on
+     */
+    public int getPort() {
+        return this.socket.getLocalPort();
+    }
+
+    /**
+     * Sets the peers batches are sent to, and the only addresses batches are
+     * accepted from
+     */
+    public void setPeers(List<InetSocketAddress> peers) {
+        this.peers = new ArrayList<>(peers);
+        this.peerAddresses = new HashSet<>(peers);
+    }
+
+    /**
+     * Queues the key to be invalidated at every peer
+     */
+    public synchronized void invalidate(byte[] key) {
+        if (4 + key.length > MAX_DATAGRAM_BYTES - HEADER_BYTES) {
+            // Too large for any batch; have peers flush instead
+            if (this.batchCount != 0) {
+                sendBatch();
+            }
+            this.batchCount = FLUSH;
+            sendBatch();
+            return;
+        }
+        if (4 + key.length > this.batch.remaining()) {
+            sendBatch();
+        }
+        this.batch.putInt(key.length);
+        this.batch.put(key);
+        this.batchCount++;
+        if (!this.flushPending) {
+            this.flushPending = true;
+            this.sender.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, this.batchDelayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sends the batch being filled, if it holds any keys
+     */
+    public synchronized void flush() {
+        this.flushPending = false;
+        if (this.batchCount != 0) {
+            sendBatch();
+        }
+    }
+
+    /**
+     * Counters of batches sent and received, keys received, lost batches
+     * noticed, each of which flushed the local caches, and datagrams dropped
+     * as malformed or not from a peer
+     */
+    public long batchesSent() {
+        return this.batchesSent;
+    }
+    public long batchesReceived() {
+        return this.batchesReceived;
+    }
+    public long keysReceived() {
+        return this.keysReceived;
+    }
+    public long gapsDetected() {
+        return this.gapsDetected;
+    }
+    public long datagramsRejected() {
+        return this.datagramsRejected;
+    }
+
+    /**
+     * Returns the number of senders heard from recently
+     */
+    int sendersTracked() {
+        return this.senders.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "port=%d peers=%d sent=%d received=%d keys=%d gaps=%d rejected=%d",
+            getPort(), this.peers.size(), this.batchesSent, this.batchesReceived,
+            this.keysReceived, this.gapsDetected, this.datagramsRejected);
+    }
+
+    /**
+     * Sends any keys still queued, then stops sending and receiving
+     */
+    @Override
+    public void close() {
+        flush();
+        this.sender.shutdownNow();
+        // Unblocks the receiver, which exits; it is not joined, since it may be
+        // waiting to apply an invalidation under a lock the caller holds
+        this.socket.close();
+    }
+
+    /**
+     * Numbers the batch, sends it to every peer and starts a new one
+     */
+    private synchronized void sendBatch() {
+        this.sequence++;
+        this.batch.putInt(0, MAGIC);
+        this.batch.putLong(4, this.senderId);
+        this.batch.putLong(12, this.sequence);
+        this.batch.putInt(20, this.batchCount);
+        send(this.batch.array(), this.batch.position());
+        this.batch.position(HEADER_BYTES);
+        this.batchCount = 0;
+        this.batchesSent++;
+    }
+
+    /**
+     * Sends the number of the last batch, with no keys, so peers notice if
+     * they missed it
+     */
+    private synchronized void sendHeartbeat() {
+        if (this.sequence == 0) {
+            return;
+        }
+        ByteBuffer heartbeat = ByteBuffer.allocate(HEADER_BYTES);
+        heartbeat.putInt(MAGIC).putLong(this.senderId).putLong(this.sequence).putInt(0);
+        send(heartbeat.array(), HEADER_BYTES);
+    }
+
+    private void send(byte[] data, int length) {
+        for (InetSocketAddress peer : this.peers) {
+            try {
+                this.socket.send(new DatagramPacket(data, length, peer));
+            }
+            catch (IOException e) {
+                // Peers that miss a batch notice the gap and flush
+            }
+        }
+    }
+
+    private void receive() {
+        byte[] buffer = new byte[MAX_DATAGRAM_BYTES];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (!this.socket.isClosed()) {
+            try {
+                packet.setLength(buffer.length);
+                this.socket.receive(packet);
+                if (!this.peerAddresses.contains(packet.getSocketAddress())) {
+                    this.datagramsRejected++;
+                    continue;
+                }
+                apply(ByteBuffer.wrap(buffer, 0, packet.getLength()));
+            }
+            catch (IOException | RuntimeException e) {
+                if (this.socket.isClosed()) {
+                    return;
+                }
+                // A malformed datagram is dropped; a lost batch shows as a gap
+            }
+        }
+    }
+
+    /**
+     * Applies one datagram from a peer, or drops it if it is malformed
+     */
+    void apply(ByteBuffer datagram) {
+        if (datagram.remaining() < HEADER_BYTES || datagram.getInt() != MAGIC) {
+            this.datagramsRejected++;
+            return;
+        }
+        long sender = datagram.getLong();
+        long sequence = datagram.getLong();
+        int count = datagram.getInt();
+        if (sender == this.senderId) {
+            return;
+        }
+        // Read every key before touching any state, so a datagram that does
+        // not add up is dropped whole; each key takes at least its length
+        if (count < FLUSH || count > datagram.remaining() / 4) {
+            this.datagramsRejected++;
+            return;
+        }
+        List<byte[]> keys = null;
+        if (count > 0) {
+            keys = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int length = datagram.remaining() >= 4 ? datagram.getInt() : -1;
+                if (length < 0 || length > datagram.remaining()) {
+                    this.datagramsRejected++;
+                    return;
+                }
+                byte[] key = new byte[length];
+                datagram.get(key);
+                keys.add(key);
+            }
+        }
+
+        long now = this.clock.getAsLong();
+        pruneSenders(now);
+        SenderState state = this.senders.get(sender);
+        boolean heartbeat = count == 0;
+        boolean gap;
+        if (state == null) {
+            // A new or restarted sender may already have lost a batch to us;
+            // only its first batch shows that nothing came before
+            gap = heartbeat || sequence > 1;
+            state = new SenderState();
+            state.sequence = sequence;
+            this.senders.put(sender, state);
+        }
+        else {
+            gap = sequence > state.sequence + (heartbeat ? 0 : 1);
+            state.sequence = Math.max(state.sequence, sequence);
+        }
+        state.lastHeardMillis = now;
+        boolean flush = gap || count == FLUSH;
+        if (flush) {
+            if (gap) {
+                this.gapsDetected++;
+            }
+            this.listener.invalidateAll();
+        }
+        if (heartbeat) {
+            return;
+        }
+        this.batchesReceived++;
+        if (count > 0 && !flush) {
+            this.keysReceived += count;
+            // A batch arriving late is still applied; invalidating twice is harmless
+            this.listener.invalidate(keys);
+        }
+    }
+
+    /**
+     * Forgets senders not heard from within the timeout, such as proxies that
+     * stopped or restarted under a new id; checked at most once per timeout
+     */
+    private void pruneSenders(long now) {
+        if (now < this.nextPruneMillis) {
+            return;
+        }
+        this.nextPruneMillis = now + this.senderTimeoutMillis;
+        Iterator<SenderState> states = this.senders.values().iterator();
+        while (states.hasNext()) {
+            if (now - states.next().lastHeardMillis > this.senderTimeoutMillis) {
+                states.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package src;
+
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.util.function.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for cross-proxy invalidation, with several proxies on one machine.
+ */
+public class RedisProxyInvalidationChannelTest {
+    /**
+     * Records what a channel applies
+     */
+    private static class RecordingListener implements RedisProxyInvalidationChannel.Listener {
+        final List<String> keys = Collections.synchronizedList(new ArrayList<String>());
+        volatile int flushes;
+
+        @Override
+        public void invalidate(List<byte[]> invalidated) {
+            for (byte[] key : invalidated) {
+                keys.add(new String(key));
+            }
+        }
+
+        @Override
+        public void invalidateAll() {
+            flushes++;
+        }
+    }
+
+    private static ByteBuffer datagram(long sender, long sequence, String... keys) {
+        ByteBuffer buffer = ByteBuffer.allocate(RedisProxyInvalidationChannel.MAX_DATAGRAM_BYTES);
+        buffer.putInt(RedisProxyInvalidationChannel.MAGIC).putLong(sender).putLong(sequence);
+        buffer.putInt(keys.length);
+        for (String key : keys) {
+            buffer.putInt(key.length()).put(key.getBytes());
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void waitFor(long timeoutMillis, BooleanSupplier condition)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * Test that a skipped batch number, or a heartbeat ahead of the last
+     * batch, flushes instead of applying keys
+     */
+    @Test
+    public void testSequenceGaps() throws Exception {
+        System.out.println("Running testSequenceGaps");
+
+        RecordingListener listener = new RecordingListener();
+        try (RedisProxyInvalidationChannel channel = new RedisProxyInvalidationChannel(0, listener)) {
+            channel.apply(datagram(7, 1, "a", "b"));
+            channel.apply(datagram(7, 2, "c"));
+            assertEquals(listener.keys, Arrays.asList("a", "b", "c"));
+            assertEquals(listener.flushes, 0);
+
+            // Batch 3 was lost
+            channel.apply(datagram(7, 4, "d"));
+            assertEquals(listener.flushes, 1);
+            assertEquals(channel.gapsDetected(), 1);
+
+            // A heartbeat for the last batch seen is fine, one past it is not
+            channel.apply(datagram(7, 4));
+            assertEquals(listener.flushes, 1);
+            channel.apply(datagram(7, 5));
+            assertEquals(listener.flushes, 2);
+
+            // Each sender is numbered separately; one first heard from past
+            // batch 1, or by its heartbeat, may have lost a batch already
+            channel.apply(datagram(8, 100, "e"));
+            assertEquals(listener.flushes, 3);
+            assertEquals(channel.gapsDetected(), 3);
+            assertFalse(listener.keys.contains("e"));
+            channel.apply(datagram(8, 101, "f"));
+            assertEquals(listener.flushes, 3);
+            assertTrue(listener.keys.contains("f"));
+            channel.apply(datagram(9, 3));
+            assertEquals(listener.flushes, 4);
+            channel.apply(datagram(10, 1, "g"));
+            assertEquals(listener.flushes, 4);
+            assertTrue(listener.keys.contains("g"));
+        }
+    }
+
+    /**
+     * Test that senders gone quiet are forgotten, and count as new if they
+     * come back
+     */
+    @Test
+    public void testSenderTimeout() throws Exception {
+        System.out.println("Running testSenderTimeout");
+
+        final long[] now = {0};
+        RecordingListener listener = new RecordingListener();
+        try (RedisProxyInvalidationChannel channel = new RedisProxyInvalidationChannel(
+                 new InetSocketAddress(0), listener, 1, 100, () -> now[0])) {
+            channel.apply(datagram(7, 1, "a"));
+            channel.apply(datagram(8, 1, "b"));
+            assertEquals(channel.sendersTracked(), 2);
+
+            // Sender 8 restarted under a new id; 7 keeps sending heartbeats
+            long timeout = 100 * RedisProxyInvalidationChannel.SENDER_TIMEOUT_HEARTBEATS;
+            for (long t = 100; t <= 2 * timeout; t += 100) {
+                now[0] = t;
+                channel.apply(datagram(7, 1));
+            }
+            assertEquals(channel.sendersTracked(), 1);
+            assertEquals(listener.flushes, 0);
+
+            channel.apply(datagram(8, 2, "c"));
+            assertEquals(listener.flushes, 1);
+            assertEquals(channel.sendersTracked(), 2);
+        }
+    }
+
+    /**
+     * Test that datagrams whose key count or key lengths do not fit are
+     * dropped whole, without allocating for the claimed sizes
+     */
+    @Test
+    public void testMalformedDatagrams() throws Exception {
+        System.out.println("Running testMalformedDatagrams");
+
+        RecordingListener listener = new RecordingListener();
+        try (RedisProxyInvalidationChannel channel = new RedisProxyInvalidationChannel(0, listener)) {
+            ByteBuffer huge = ByteBuffer.allocate(RedisProxyInvalidationChannel.HEADER_BYTES);
+            huge.putInt(RedisProxyInvalidationChannel.MAGIC).putLong(7).putLong(1).putInt(Integer.MAX_VALUE);
+            huge.flip();
+            channel.apply(huge);
+
+            ByteBuffer negative = datagram(7, 1, "a", "b");
+            negative.putInt(RedisProxyInvalidationChannel.HEADER_BYTES + 5, -1);
+            channel.apply(negative);
+
+            ByteBuffer overlong = datagram(7, 1, "a", "b");
+            overlong.putInt(RedisProxyInvalidationChannel.HEADER_BYTES + 5, 1000);
+            channel.apply(overlong);
+
+            assertEquals(channel.datagramsRejected(), 3);
+            assertTrue(listener.keys.isEmpty());
+            assertEquals(listener.flushes, 0);
+
+            // The sender's numbering was left untouched
+            channel.apply(datagram(7, 1, "a", "b"));
+            assertEquals(listener.keys, Arrays.asList("a", "b"));
+            assertEquals(listener.flushes, 0);
+        }
+    }
+
+    /**
+     * Test that datagrams from addresses other than the peers are ignored
+     */
+    @Test
+    public void testOnlyPeersAccepted() throws Exception {
+        System.out.println("Running testOnlyPeersAccepted");
+
+        RecordingListener listener = new RecordingListener();
+        try (final RedisProxyInvalidationChannel receiver = new RedisProxyInvalidationChannel(
+                 new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), listener);
+             DatagramSocket stranger = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            ByteBuffer batch = datagram(7, 1, "a");
+            InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(), receiver.getPort());
+            stranger.send(new DatagramPacket(batch.array(), batch.limit(), target));
+            waitFor(2000, () -> receiver.datagramsRejected() == 1);
+            assertEquals(receiver.datagramsRejected(), 1);
+            assertEquals(receiver.keysReceived(), 0);
+
+            receiver.setPeers(Collections.singletonList(
+                (InetSocketAddress) stranger.getLocalSocketAddress()));
+            stranger.send(new DatagramPacket(batch.array(), batch.limit(), target));
+            waitFor(2000, () -> receiver.keysReceived() == 1);
+            assertEquals(listener.keys, Arrays.asList("a"));
+        }
+    }
+
+    /**
+     * Test that keys are batched into few datagrams and all arrive
+     */
+    @Test
+    public void testBatching() throws Exception {
+        System.out.println("Running testBatching");
+
+        RecordingListener listener = new RecordingListener();
+        try (RedisProxyInvalidationChannel sender = new RedisProxyInvalidationChannel(0,
+                 new RecordingListener(), 50, 1000);
+             final RedisProxyInvalidationChannel receiver = new RedisProxyInvalidationChannel(0, listener)) {
+            sender.setPeers(Collections.singletonList(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), receiver.getPort())));
+            receiver.setPeers(Collections.singletonList(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), sender.getPort())));
+            for (int i = 0; i < 100; i++) {
+                sender.invalidate(RedisProxyKeyGenerator.key(i).getBytes());
+            }
+            waitFor(2000, () -> receiver.keysReceived() == 100);
+            assertEquals(receiver.keysReceived(), 100);
+            assertTrue(sender.batchesSent() <= 3);
+            assertEquals(listener.keys.get(99), RedisProxyKeyGenerator.key(99));
+
+            // A key too large for a datagram flushes the peer instead
+            sender.invalidate(new byte[RedisProxyInvalidationChannel.MAX_DATAGRAM_BYTES]);
+            waitFor(2000, () -> listener.flushes == 1);
+            assertEquals(listener.flushes, 1);
+            assertEquals(receiver.gapsDetected(), 0);
+        }
+    }
+
+    /**
+     * Test that a set through one proxy drops the cached copies in the others
+     */
+    @Test
+    public void testProxiesInvalidateEachOther() throws Exception {
+        System.out.println("Running testProxiesInvalidateEachOther");
+
+        try (EmbeddedRedisServer server = new EmbeddedRedisServer()) {
+            RedisProxy[] proxies = new RedisProxy[3];
+            int[] ports = new int[proxies.length];
+            try {
+                for (int i = 0; i < proxies.length; i++) {
+                    proxies[i] = new RedisProxy(server.getHost(), server.getPort(), null, 10, 60000);
+                    ports[i] = proxies[i].enableInvalidation(0, Collections.<InetSocketAddress>emptyList());
+                }
+                for (int i = 0; i < proxies.length; i++) {
+                    List<InetSocketAddress> peers = new ArrayList<>();
+                    for (int j = 0; j < proxies.length; j++) {
+                        if (j != i) {
+                            peers.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), ports[j]));
+                        }
+                    }
+                    proxies[i].setInvalidationPeers(peers);
+                }
+
+                proxies[0].set("user:1", "old");
+                assertEquals(proxies[1].get("user:1"), "old");
+                assertEquals(proxies[2].get("user:1"), "old");
+
+                proxies[0].set("user:1", "new");
+                final RedisProxy[] peers = proxies;
+                waitFor(2000, () -> !peers[1].cacheContainsValidEntry("user:1")
+                    && !peers[2].cacheContainsValidEntry("user:1"));
+                assertEquals(proxies[1].get("user:1"), "new");
+                assertEquals(proxies[2].get("user:1"), "new");
+            }
+            finally {
+                for (RedisProxy proxy : proxies) {
+                    if (proxy != null) {
+                        proxy.close();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package src;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A binary-safe cache key: the raw bytes of a Redis key with its hash
+ * computed once, so lookups do not rehash the key.
+ *
+ * The key wraps the given array without copying it, so lookups allocate
+ * nothing beyond the key itself. Anything that keeps a key after the call
+ * that made it, such as a cache entry, must keep a copy() instead, since
+ * callers may reuse their arrays.
+ */
+public final class RedisProxyKey {
+    private final byte[] bytes;
+    private final int hash;
+
+    public RedisProxyKey(byte[] bytes) {
+        this.bytes = bytes;
+        this.hash = Arrays.hashCode(bytes);
+    }
+
+    private RedisProxyKey(byte[] bytes, int hash) {
+        this.bytes = bytes;
+        this.hash = hash;
+    }
+
+    /**
+     * Returns the key for the UTF-8 encoding of the string
+     */
+    public static RedisProxyKey of(String key) {
+        return new RedisProxyKey(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns an equal key over a copy of the bytes, without rehashing
+     */
+    public RedisProxyKey copy() {
+        return new RedisProxyKey(bytes.clone(), hash);
+    }
+
+    /**
+     * Returns the key's bytes, without copying; they must not be modified
+     */
+    public byte[] bytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns true if the key's bytes begin with the prefix
+     */
+    public boolean startsWith(byte[] prefix) {
+        if (prefix.length > bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof RedisProxyKey)) {
+            return false;
+        }
+        RedisProxyKey that = (RedisProxyKey) other;
+        return this.hash == that.hash && Arrays.equals(this.bytes, that.bytes);
+    }
+
+    /**
+     * Returns the key decoded as UTF-8
+     */
+    @Override
+    public String toString() {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
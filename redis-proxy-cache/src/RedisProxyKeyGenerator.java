@@ -0,0 +1,132 @@
+package src;
+
+import java.util.*;
+
+/**
+ * Generates key indexes in [0, keySpace) following a workload distribution,
+ * used to drive the cache and the proxy in benchmarks and load tests.
+ * Instances are not thread-safe; use one generator per thread.
+ */
+public abstract class RedisProxyKeyGenerator {
+    /**
+     * Default skew of the Zipfian distribution, as used by YCSB
+     */
+    public static final double DEFAULT_ZIPFIAN_THETA = 0.99;
+
+    protected final long keySpace;
+
+    protected RedisProxyKeyGenerator(long keySpace) throws IllegalArgumentException {
+        if (keySpace <= 0) {
+            throw new IllegalArgumentException("Key space must be positive");
+        }
+        this.keySpace = keySpace;
+    }
+
+    /**
+     * Returns the next key index
+     */
+    public abstract long next();
+
+    /**
+     * Returns the next key, formatted the same way for every workload
+     */
+    public String nextKey() {
+        return key(next());
+    }
+
+    /**
+     * Returns the key for the given key index
+     */
+    public static String key(long index) {
+        return "key:" + index;
+    }
+
+    /**
+     * Every key is equally likely
+     */
+    public static RedisProxyKeyGenerator uniform(long keySpace, long seed) {
+        final SplittableRandom random = new SplittableRandom(seed);
+        return new RedisProxyKeyGenerator(keySpace) {
+            @Override
+            public long next() {
+                return random.nextLong(this.keySpace);
+            }
+        };
+    }
+
+    /**
+     * Keys are visited in order, wrapping around at the end of the key space.
+     * Under LRU this misses on every request once the key space exceeds the capacity.
+     */
+    public static RedisProxyKeyGenerator scan(long keySpace) {
+        return new RedisProxyKeyGenerator(keySpace) {
+            private long position = 0;
+
+            @Override
+            public long next() {
+                long index = position;
+                position = (position + 1 == this.keySpace) ? 0 : position + 1;
+                return index;
+            }
+        };
+    }
+
+    /**
+     * Key i is requested with probability proportional to 1 / (i + 1)^theta,
+     * so key 0 is the hottest. Uses the method from Gray et al, "Quickly
+     * generating billion-record synthetic databases", as YCSB does.
+     */
+    public static RedisProxyKeyGenerator zipfian(long keySpace, double theta, long seed)
+            throws IllegalArgumentException {
+        if (theta <= 0 || theta == 1) {
+            throw new IllegalArgumentException("Zipfian theta must be positive and not 1");
+        }
+        final SplittableRandom random = new SplittableRandom(seed);
+        final double zetaN = zeta(keySpace, theta);
+        final double zeta2 = zeta(2, theta);
+        final double alpha = 1.0 / (1.0 - theta);
+        final double eta = (1 - Math.pow(2.0 / keySpace, 1 - theta)) / (1 - zeta2 / zetaN);
+        final double halfPowTheta = 1 + Math.pow(0.5, theta);
+
+        return new RedisProxyKeyGenerator(keySpace) {
+            @Override
+            public long next() {
+                double u = random.nextDouble();
+                double uz = u * zetaN;
+                if (uz < 1.0) {
+                    return 0;
+                }
+                if (uz < halfPowTheta) {
+                    return Math.min(1, this.keySpace - 1);
+                }
+                long index = (long) (this.keySpace * Math.pow(eta * u - eta + 1, alpha));
+                return Math.min(index, this.keySpace - 1);
+            }
+        };
+    }
+
+    /**
+     * Returns a generator by workload name: "uniform", "zipfian" or "scan"
+     */
+    public static RedisProxyKeyGenerator forName(String name, long keySpace, long seed)
+            throws IllegalArgumentException {
+        switch (name) {
+            case "uniform":
+                return uniform(keySpace, seed);
+            case "zipfian":
+                return zipfian(keySpace, DEFAULT_ZIPFIAN_THETA, seed);
+            case "scan":
+                return scan(keySpace);
+            default:
+                throw new IllegalArgumentException("Unknown workload: " + name);
+        }
+    }
+
+    private static double zeta(long n, double theta) {
+        double sum = 0;
+        for (long i = 1; i <= n; i++) {
+            sum += 1.0 / Math.pow(i, theta);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,306 @@
+package src;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Drives a RedisProxy with gets and sets over a skewed key distribution and
+ * reports throughput, cache hit ratio and latency percentiles.
+ *
+ * In closed-loop mode each client issues its next request as soon as the
+ * previous one completes. In open-loop mode requests are scheduled at a
+ * fixed target rate and latency is measured from the time each request was
+ * due, so a stalled proxy shows up as queueing delay instead of as fewer
+ * samples.
+ */
+public class RedisProxyLoadGenerator {
+    /**
+     * Results of a load run
+     */
+    public static final class Report {
+        public final long requests;
+        public final long errors;
+        public final long elapsedNanos;
+        public final long cacheHits;
+        public final long cacheMisses;
+        public final RedisProxyLatencyHistogram latencies;
+
+        Report(long requests, long errors, long elapsedNanos, long cacheHits,
+               long cacheMisses, RedisProxyLatencyHistogram latencies) {
+            this.requests = requests;
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+            this.cacheHits = cacheHits;
+            this.cacheMisses = cacheMisses;
+            this.latencies = latencies;
+        }
+
+        public double throughputPerSecond() {
+            return elapsedNanos == 0 ? 0 : requests * 1e9 / elapsedNanos;
+        }
+
+        public double hitRatio() {
+            long gets = cacheHits + cacheMisses;
+            return gets == 0 ? 0 : (double) cacheHits / gets;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                "requests=%d errors=%d throughput=%.0f/s hitRatio=%.4f "
+                    + "latency(us) mean=%.1f p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f",
+                requests, errors, throughputPerSecond(), hitRatio(),
+                latencies.mean() / 1000.0,
+                latencies.percentile(50) / 1000.0,
+                latencies.percentile(90) / 1000.0,
+                latencies.percentile(99) / 1000.0,
+                latencies.percentile(99.9) / 1000.0,
+                latencies.max() / 1000.0);
+        }
+    }
+
+    private final RedisProxy proxy;
+    private final String workload;
+    private final long keySpace;
+    private final double readRatio;
+    private final String value;
+
+    /**
+     * Creates a load generator for the proxy.
+     * workload is a RedisProxyKeyGenerator name ("uniform", "zipfian" or "scan"),
+     * readRatio the fraction of requests that are gets rather than sets.
+     */
+    public RedisProxyLoadGenerator(RedisProxy proxy, String workload, long keySpace,
+                                   double readRatio, int valueSize) throws IllegalArgumentException {
+        if (readRatio < 0 || readRatio > 1) {
+            throw new IllegalArgumentException("Read ratio must be between 0 and 1");
+        }
+        // Fail fast on unknown workloads
+        RedisProxyKeyGenerator.forName(workload, keySpace, 0);
+
+        this.proxy = proxy;
+        this.workload = workload;
+        this.keySpace = keySpace;
+        this.readRatio = readRatio;
+        char[] chars = new char[valueSize];
+        Arrays.fill(chars, 'v');
+        this.value = new String(chars);
+    }
+
+    /**
+     * Writes every key once through the proxy, so gets find a value in Redis
+     */
+    public void populate() {
+        for (long i = 0; i < keySpace; i++) {
+            proxy.set(RedisProxyKeyGenerator.key(i), value);
+        }
+    }
+
+    /**
+     * Runs the given number of clients back to back for the given duration
+     */
+    public Report runClosedLoop(int clients, long durationMillis) throws InterruptedException {
+        return run(clients, durationMillis, 0);
+    }
+
+    /**
+     * Issues requests at the target rate, spread over the given number of
+     * clients, for the given duration
+     */
+    public Report runOpenLoop(double targetPerSecond, int clients, long durationMillis)
+            throws InterruptedException, IllegalArgumentException {
+        if (targetPerSecond <= 0) {
+            throw new IllegalArgumentException("Target rate must be positive");
+        }
+        return run(clients, durationMillis, (long) (1e9 * clients / targetPerSecond));
+    }
+
+    private Report run(final int clients, final long durationMillis, final long intervalNanos)
+            throws InterruptedException {
+        if (clients <= 0) {
+            throw new IllegalArgumentException("Number of clients must be positive");
+        }
+        final long hitsBefore = proxy.cacheHits();
+        final long missesBefore = proxy.cacheMisses();
+        final RedisProxyLatencyHistogram[] histograms = new RedisProxyLatencyHistogram[clients];
+        final long[] requests = new long[clients];
+        final long[] errors = new long[clients];
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[clients];
+
+        for (int c = 0; c < clients; c++) {
+            final int client = c;
+            histograms[c] = new RedisProxyLatencyHistogram();
+            threads[c] = new Thread("load-generator-" + c) {
+                @Override
+                public void run() {
+                    RedisProxyKeyGenerator keys = RedisProxyKeyGenerator.forName(workload, keySpace, client);
+                    SplittableRandom random = new SplittableRandom(~client);
+                    RedisProxyLatencyHistogram histogram = histograms[client];
+                    try {
+                        start.await();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    long begin = System.nanoTime();
+                    long end = begin + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+                    // Stagger open-loop clients so their requests interleave evenly
+                    long due = begin + intervalNanos * client / clients;
+
+                    while (true) {
+                        long issued;
+                        if (intervalNanos > 0) {
+                            long now = System.nanoTime();
+                            if (due >= end) {
+                                break;
+                            }
+                            if (now < due) {
+                                LockSupport.parkNanos(due - now);
+                                continue;
+                            }
+                            issued = due;
+                            due += intervalNanos;
+                        }
+                        else {
+                            issued = System.nanoTime();
+                            if (issued >= end) {
+                                break;
+                            }
+                        }
+
+                        String key = keys.nextKey();
+                        try {
+                            if (random.nextDouble() < readRatio) {
+                                proxy.get(key);
+                            }
+                            else {
+                                proxy.set(key, value);
+                            }
+                        }
+                        catch (RuntimeException e) {
+                            errors[client]++;
+                        }
+                        requests[client]++;
+                        histogram.record(System.nanoTime() - issued);
+                    }
+                }
+            };
+            threads[c].start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+
+        RedisProxyLatencyHistogram merged = new RedisProxyLatencyHistogram();
+        long totalRequests = 0;
+        long totalErrors = 0;
+        for (int c = 0; c < clients; c++) {
+            merged.merge(histograms[c]);
+            totalRequests += requests[c];
+            totalErrors += errors[c];
+        }
+        return new Report(totalRequests, totalErrors, elapsed,
+            proxy.cacheHits() - hitsBefore, proxy.cacheMisses() - missesBefore, merged);
+    }
+
+    /**
+     * Runs a load test against an embedded stand-in server, or against a real
+     * Redis if host and port are given. Arguments are name=value pairs:
+     * host, port, mode (closed or open), rate, clients, seconds, workload,
+     * keys, reads, valueSize, capacity, expiryMillis, latencyMicros,
+     * compressionThreshold (in bytes, off by default), tierMegabytes and
+     * tierSlotBytes (a second cache tier in a temporary file, off by default),
+     * hotKeys (the number of most requested keys to print, off by default),
+     * and trace (a file to record the run's trace to).
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("Expected name=value, got " + arg);
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+
+        EmbeddedRedisServer server = null;
+        String host = options.get("host");
+        int port = Integer.parseInt(option(options, "port", "6379"));
+        if (host == null) {
+            server = new EmbeddedRedisServer();
+            server.setLatencyMicros(Long.parseLong(option(options, "latencyMicros", "0")));
+            host = server.getHost();
+            port = server.getPort();
+        }
+
+        RedisProxy proxy = new RedisProxy(host, port, null,
+            Integer.parseInt(option(options, "capacity", "10000")),
+            Long.parseLong(option(options, "expiryMillis", "60000")));
+        try {
+            proxy.configureCompression(
+                Integer.parseInt(option(options, "compressionThreshold", "-1")));
+            if (options.containsKey("hotKeys")) {
+                proxy.enableHotKeyTracking(RedisProxyHotKeys.DEFAULT_COUNTERS,
+                    RedisProxyHotKeys.DEFAULT_WINDOW_MILLIS);
+            }
+            if (options.containsKey("tierMegabytes")) {
+                File tierFile = File.createTempFile("proxy", ".tier");
+                tierFile.deleteOnExit();
+                proxy.enableTieredCache(tierFile,
+                    Long.parseLong(options.get("tierMegabytes")) << 20,
+                    Integer.parseInt(option(options, "tierSlotBytes",
+                        String.valueOf(RedisProxyMappedCache.DEFAULT_SLOT_BYTES))));
+            }
+            RedisProxyLoadGenerator generator = new RedisProxyLoadGenerator(proxy,
+                option(options, "workload", "zipfian"),
+                Long.parseLong(option(options, "keys", "100000")),
+                Double.parseDouble(option(options, "reads", "0.95")),
+                Integer.parseInt(option(options, "valueSize", "100")));
+            generator.populate();
+            if (options.containsKey("trace")) {
+                proxy.startTraceRecording(new File(options.get("trace")));
+            }
+
+            int clients = Integer.parseInt(option(options, "clients", "4"));
+            long durationMillis = Long.parseLong(option(options, "seconds", "10")) * 1000;
+            Report report;
+            if (option(options, "mode", "closed").equals("open")) {
+                report = generator.runOpenLoop(
+                    Double.parseDouble(option(options, "rate", "10000")), clients, durationMillis);
+            }
+            else {
+                report = generator.runClosedLoop(clients, durationMillis);
+            }
+            System.out.println(report);
+            if (proxy.compressionStats() != null) {
+                System.out.println(proxy.compressionStats());
+            }
+            if (proxy.secondTierStats() != null) {
+                System.out.println(proxy.secondTierStats());
+            }
+            if (options.containsKey("hotKeys")) {
+                for (RedisProxyHotKeys.HotKey hotKey : proxy.hotKeys(Integer.parseInt(options.get("hotKeys")))) {
+                    System.out.println(hotKey);
+                }
+            }
+        }
+        finally {
+            proxy.close();
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
+}
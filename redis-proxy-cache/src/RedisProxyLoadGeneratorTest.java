@@ -0,0 +1,70 @@
+package src;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the load generator and latency histogram, run against the
+ * embedded stand-in server.
+ */
+public class RedisProxyLoadGeneratorTest {
+    /**
+     * Test that percentiles are accurate to within the histogram's precision
+     */
+    @Test
+    public void testHistogramPercentiles() {
+        System.out.println("Running testHistogramPercentiles");
+
+        RedisProxyLatencyHistogram histogram = new RedisProxyLatencyHistogram();
+        for (long i = 1; i <= 100000; i++) {
+            histogram.record(i * 1000);
+        }
+        assertEquals(histogram.count(), 100000);
+        assertEquals(histogram.max(), 100000000L);
+        assertEquals(histogram.percentile(50), 50000000.0, 50000000.0 * 0.02);
+        assertEquals(histogram.percentile(99), 99000000.0, 99000000.0 * 0.02);
+        assertEquals(histogram.percentile(100), 100000000L);
+    }
+
+    /**
+     * Test a short closed-loop run over a skewed workload
+     */
+    @Test
+    public void testClosedLoop() throws Exception {
+        System.out.println("Running testClosedLoop");
+
+        EmbeddedRedisServer server = new EmbeddedRedisServer();
+        RedisProxy proxy = new RedisProxy(server.getHost(), server.getPort(), "testPassword", 100, 10000);
+        RedisProxyLoadGenerator generator = new RedisProxyLoadGenerator(proxy, "zipfian", 1000, 1.0, 16);
+        generator.populate();
+
+        RedisProxyLoadGenerator.Report report = generator.runClosedLoop(2, 300);
+        assertTrue(report.requests > 0);
+        assertEquals(report.errors, 0);
+        assertEquals(report.latencies.count(), report.requests);
+        assertEquals(report.cacheHits + report.cacheMisses, report.requests);
+        // The hottest keys fit in the cache
+        assertTrue(report.hitRatio() > 0.3);
+
+        proxy.close();
+        server.close();
+    }
+
+    /**
+     * Test that an open-loop run issues requests at the target rate
+     */
+    @Test
+    public void testOpenLoop() throws Exception {
+        System.out.println("Running testOpenLoop");
+
+        EmbeddedRedisServer server = new EmbeddedRedisServer();
+        RedisProxy proxy = new RedisProxy(server.getHost(), server.getPort(), "testPassword", 100, 10000);
+        RedisProxyLoadGenerator generator = new RedisProxyLoadGenerator(proxy, "uniform", 1000, 0.9, 16);
+
+        RedisProxyLoadGenerator.Report report = generator.runOpenLoop(1000, 2, 500);
+        assertEquals(report.requests, 500, 5);
+
+        proxy.close();
+        server.close();
+    }
+}
@@ -0,0 +1,381 @@
+package src;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * Second-tier cache held in a memory-mapped file, so it can be much larger
+ * than the heap. RedisProxy demotes entries evicted from its on-heap cache
+ * here, and promotes them back on a hit.
+ *
+ * The file is a set-associative table of fixed-size slots: a key's 64-bit hash
+ * picks a set of WAYS slots, and a new entry replaces an empty or expired
+ * slot in its set, or else the least recently used one. The table is its own
+ * index, so lookups read at most one set and nothing but the buffers lives on
+ * the heap. Entries larger than a slot are not stored.
+ *
+ * Each slot holds:
+ *   keyHash (8 bytes), lastUsedTimeMillis (8), keyLength (4), valueLength (4),
+ *   flags (1, occupied and compressed), padding (3), generation (4), then the
+ *   key and value.
+ *
+ * A slot only counts as occupied if its generation is the cache's current
+ * one, so clear() just starts a new generation instead of writing to every
+ * page of the file.
+ * The file is overwritten when the cache is created; its contents do not
+ * survive a restart. Not thread-safe; RedisProxy serialises access.
+ */
+public class RedisProxyMappedCache implements Closeable {
+    /**
+     * Slots per set
+     */
+    public static final int WAYS = 8;
+    public static final int DEFAULT_SLOT_BYTES = 512;
+
+    static final int SLOT_HEADER_BYTES = 32;
+    private static final byte OCCUPIED = 1;
+    private static final byte COMPRESSED = 2;
+
+    /**
+     * Largest mapping; a single MappedByteBuffer is limited to 2 GB
+     */
+    private static final int MAX_SEGMENT_BYTES = 1 << 30;
+
+    /**
+     * An entry removed from the cache, with its value as stored
+     */
+    public static final class Entry {
+        public final byte[] value;
+        public final boolean compressed;
+        public final long lastUsedTimeMillis;
+
+        Entry(byte[] value, boolean compressed, long lastUsedTimeMillis) {
+            this.value = value;
+            this.compressed = compressed;
+            this.lastUsedTimeMillis = lastUsedTimeMillis;
+        }
+    }
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer[] segments;
+    private final int slotBytes;
+    private final long sets;
+    private final int setsPerSegment;
+    private final long globalExpiryMillis;
+    private final LongSupplier clock;
+
+    /**
+     * Generation stamped on slots written since the last clear; the zeroed
+     * file starts at 0, so every slot begins out of date
+     */
+    private int generation = 1;
+
+    private long size;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long rejected;
+
+    public RedisProxyMappedCache(File file, long capacityBytes, int slotBytes, long globalExpiryMillis)
+            throws IOException, IllegalArgumentException {
+        this(file, capacityBytes, slotBytes, globalExpiryMillis, System::currentTimeMillis);
+    }
+
+    RedisProxyMappedCache(File file, long capacityBytes, int slotBytes, long globalExpiryMillis,
+                          LongSupplier clock) throws IOException, IllegalArgumentException {
+        if (slotBytes <= SLOT_HEADER_BYTES || slotBytes > MAX_SEGMENT_BYTES / WAYS) {
+            throw new IllegalArgumentException("Invalid slot size");
+        }
+        if (capacityBytes < (long) slotBytes * WAYS) {
+            throw new IllegalArgumentException("Capacity must hold at least one set of slots");
+        }
+        if (globalExpiryMillis < 0) {
+            throw new IllegalArgumentException("Global expiry cannot be negative");
+        }
+        int setBytes = slotBytes * WAYS;
+        this.slotBytes = slotBytes;
+        this.sets = capacityBytes / setBytes;
+        this.setsPerSegment = MAX_SEGMENT_BYTES / setBytes;
+        this.globalExpiryMillis = globalExpiryMillis;
+        this.clock = clock;
+
+        this.file = new RandomAccessFile(file, "rw");
+        try {
+            // Truncating first zeroes every slot, marking it empty
+            this.file.setLength(0);
+            this.file.setLength(this.sets * setBytes);
+            FileChannel channel = this.file.getChannel();
+            this.segments = new MappedByteBuffer[(int) ((this.sets + setsPerSegment - 1) / setsPerSegment)];
+            for (int i = 0; i < segments.length; i++) {
+                long first = (long) i * setsPerSegment;
+                long length = Math.min(setsPerSegment, this.sets - first) * setBytes;
+                this.segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, first * setBytes, length);
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            this.file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Stores the value for the key, replacing any earlier value. Returns false
+     * if the key and value do not fit in a slot.
+     */
+    public boolean put(RedisProxyKey key, byte[] value, boolean compressed, long lastUsedTimeMillis) {
+        byte[] keyBytes = key.bytes();
+        if (SLOT_HEADER_BYTES + keyBytes.length + value.length > this.slotBytes) {
+            this.rejected++;
+            return false;
+        }
+        long hash = hash(keyBytes);
+        long set = setOf(hash);
+        ByteBuffer segment = segmentOf(set);
+        int setOffset = setOffset(set);
+        long now = this.clock.getAsLong();
+
+        // Reuse the key's own slot, else an empty or expired one, else the
+        // least recently used one
+        int target = -1;
+        int oldest = -1;
+        long oldestTime = Long.MAX_VALUE;
+        for (int way = 0; way < WAYS; way++) {
+            int slot = setOffset + way * this.slotBytes;
+            if (!isOccupied(segment, slot)) {
+                if (target < 0) {
+                    target = slot;
+                }
+                continue;
+            }
+            if (matches(segment, slot, hash, keyBytes)) {
+                target = slot;
+                this.size--;
+                break;
+            }
+            long lastUsed = segment.getLong(slot + 8);
+            if (now - lastUsed > this.globalExpiryMillis) {
+                if (target < 0) {
+                    segment.put(slot + 24, (byte) 0);
+                    this.size--;
+                    target = slot;
+                }
+            }
+            else if (lastUsed < oldestTime) {
+                oldestTime = lastUsed;
+                oldest = slot;
+            }
+        }
+        if (target < 0) {
+            target = oldest;
+            this.evictions++;
+            this.size--;
+        }
+
+        segment.putLong(target, hash);
+        segment.putLong(target + 8, lastUsedTimeMillis);
+        segment.putInt(target + 16, keyBytes.length);
+        segment.putInt(target + 20, value.length);
+        segment.position(target + SLOT_HEADER_BYTES);
+        segment.put(keyBytes);
+        segment.put(value);
+        segment.putInt(target + 28, this.generation);
+        segment.put(target + 24, compressed ? (byte) (OCCUPIED | COMPRESSED) : OCCUPIED);
+        this.size++;
+        return true;
+    }
+
+    /**
+     * Removes and returns the entry for the key, or null if there is none or
+     * it has expired
+     */
+    public Entry remove(RedisProxyKey key) {
+        byte[] keyBytes = key.bytes();
+        long hash = hash(keyBytes);
+        long set = setOf(hash);
+        ByteBuffer segment = segmentOf(set);
+        int slot = find(segment, setOffset(set), hash, keyBytes);
+        if (slot >= 0) {
+            byte flags = segment.get(slot + 24);
+            segment.put(slot + 24, (byte) 0);
+            this.size--;
+
+            long lastUsed = segment.getLong(slot + 8);
+            if (this.clock.getAsLong() - lastUsed <= this.globalExpiryMillis) {
+                byte[] value = new byte[segment.getInt(slot + 20)];
+                segment.position(slot + SLOT_HEADER_BYTES + keyBytes.length);
+                segment.get(value);
+                this.hits++;
+                return new Entry(value, (flags & COMPRESSED) != 0, lastUsed);
+            }
+        }
+        this.misses++;
+        return null;
+    }
+
+    /**
+     * Drops the entry for the key, if any, without counting a hit or miss
+     */
+    public void invalidate(RedisProxyKey key) {
+        byte[] keyBytes = key.bytes();
+        long hash = hash(keyBytes);
+        long set = setOf(hash);
+        ByteBuffer segment = segmentOf(set);
+        int slot = find(segment, setOffset(set), hash, keyBytes);
+        if (slot >= 0) {
+            segment.put(slot + 24, (byte) 0);
+            this.size--;
+        }
+    }
+
+    /**
+     * Drops every entry whose key starts with the prefix. This reads every
+     * slot, so it is meant for rare reconfiguration, not per request.
+     */
+    public void invalidatePrefix(byte[] prefix) {
+        for (long set = 0; set < this.sets; set++) {
+            ByteBuffer segment = segmentOf(set);
+            int setOffset = setOffset(set);
+            for (int way = 0; way < WAYS; way++) {
+                int slot = setOffset + way * this.slotBytes;
+                if (isOccupied(segment, slot) && startsWith(segment, slot, prefix)) {
+                    segment.put(slot + 24, (byte) 0);
+                    this.size--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes every entry by starting a new generation, without touching the file
+     */
+    public void clear() {
+        if (this.generation == Integer.MAX_VALUE) {
+            // Once in 2^31 clears, empty every slot so old generations cannot come back
+            for (long set = 0; set < this.sets; set++) {
+                ByteBuffer segment = segmentOf(set);
+                int setOffset = setOffset(set);
+                for (int way = 0; way < WAYS; way++) {
+                    segment.put(setOffset + way * this.slotBytes + 24, (byte) 0);
+                }
+            }
+            this.generation = 0;
+        }
+        this.generation++;
+        this.size = 0;
+    }
+
+    /**
+     * Returns the number of entries stored, including any that have expired
+     * but not yet been replaced
+     */
+    public long size() {
+        return this.size;
+    }
+
+    /**
+     * Returns the number of entries the file has slots for
+     */
+    public long slots() {
+        return this.sets * WAYS;
+    }
+
+    /**
+     * Counters for removes that found a live entry and that did not, entries
+     * replaced to make room, and puts too large for a slot
+     */
+    public long hits() {
+        return this.hits;
+    }
+    public long misses() {
+        return this.misses;
+    }
+    public long evictions() {
+        return this.evictions;
+    }
+    public long rejected() {
+        return this.rejected;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "entries=%d slots=%d hits=%d misses=%d evictions=%d rejected=%d",
+            this.size, slots(), this.hits, this.misses, this.evictions, this.rejected);
+    }
+
+    /**
+     * Closes the file. The mappings stay valid until they are garbage collected.
+     */
+    @Override
+    public void close() throws IOException {
+        this.file.close();
+    }
+
+    /**
+     * Returns the offset of the key's slot in the set, or -1 if it has none
+     */
+    private int find(ByteBuffer segment, int setOffset, long hash, byte[] keyBytes) {
+        for (int way = 0; way < WAYS; way++) {
+            int slot = setOffset + way * this.slotBytes;
+            if (isOccupied(segment, slot) && matches(segment, slot, hash, keyBytes)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(ByteBuffer segment, int slot, byte[] prefix) {
+        if (segment.getInt(slot + 16) < prefix.length) {
+            return false;
+        }
+        int offset = slot + SLOT_HEADER_BYTES;
+        for (int i = 0; i < prefix.length; i++) {
+            if (segment.get(offset + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isOccupied(ByteBuffer segment, int slot) {
+        return (segment.get(slot + 24) & OCCUPIED) != 0 && segment.getInt(slot + 28) == this.generation;
+    }
+
+    private static boolean matches(ByteBuffer segment, int slot, long hash, byte[] keyBytes) {
+        if (segment.getLong(slot) != hash || segment.getInt(slot + 16) != keyBytes.length) {
+            return false;
+        }
+        int offset = slot + SLOT_HEADER_BYTES;
+        for (int i = 0; i < keyBytes.length; i++) {
+            if (segment.get(offset + i) != keyBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long setOf(long hash) {
+        return Long.remainderUnsigned(hash, this.sets);
+    }
+
+    private ByteBuffer segmentOf(long set) {
+        return this.segments[(int) (set / this.setsPerSegment)];
+    }
+
+    private int setOffset(long set) {
+        return (int) (set % this.setsPerSegment) * this.slotBytes * WAYS;
+    }
+
+    /**
+     * FNV-1a with a final mix, so that nearby keys spread across sets
+     */
+    static long hash(byte[] key) {
+        long hash = RedisProxyTraceRecorder.hash(key);
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
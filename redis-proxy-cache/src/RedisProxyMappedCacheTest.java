@@ -0,0 +1,142 @@
+package src;
+
+import java.io.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the memory-mapped second cache tier.
+ */
+public class RedisProxyMappedCacheTest {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("proxy", ".tier");
+        file.deleteOnExit();
+    }
+
+    /**
+     * Test that entries come back once, with their flags and timestamps
+     */
+    @Test
+    public void testPutAndRemove() throws IOException {
+        System.out.println("Running testPutAndRemove");
+
+        try (RedisProxyMappedCache tier = new RedisProxyMappedCache(file, 1 << 20, 128, 10000)) {
+            long now = System.currentTimeMillis();
+            assertTrue(tier.put(RedisProxyKey.of("a"), "1".getBytes(), false, now));
+            assertTrue(tier.put(RedisProxyKey.of("b"), "2".getBytes(), true, now - 5));
+            assertTrue(tier.put(RedisProxyKey.of("a"), "one".getBytes(), false, now));
+            assertEquals(tier.size(), 2);
+
+            RedisProxyMappedCache.Entry entry = tier.remove(RedisProxyKey.of("b"));
+            assertArrayEquals(entry.value, "2".getBytes());
+            assertTrue(entry.compressed);
+            assertEquals(entry.lastUsedTimeMillis, now - 5);
+            assertArrayEquals(tier.remove(RedisProxyKey.of("a")).value, "one".getBytes());
+            assertNull(tier.remove(RedisProxyKey.of("a")));
+            assertEquals(tier.size(), 0);
+            assertEquals(tier.hits(), 2);
+            assertEquals(tier.misses(), 1);
+        }
+    }
+
+    /**
+     * Test that clearing drops every entry and that slots are reused after
+     */
+    @Test
+    public void testClear() throws IOException {
+        System.out.println("Running testClear");
+
+        try (RedisProxyMappedCache tier = new RedisProxyMappedCache(file, 1 << 20, 128, 10000)) {
+            long now = System.currentTimeMillis();
+            tier.put(RedisProxyKey.of("a"), "1".getBytes(), false, now);
+            tier.put(RedisProxyKey.of("b"), "2".getBytes(), false, now);
+            tier.clear();
+            assertEquals(tier.size(), 0);
+            assertNull(tier.remove(RedisProxyKey.of("a")));
+
+            tier.put(RedisProxyKey.of("a"), "3".getBytes(), false, now);
+            tier.invalidate(RedisProxyKey.of("b"));
+            assertEquals(tier.size(), 1);
+            assertArrayEquals(tier.remove(RedisProxyKey.of("a")).value, "3".getBytes());
+            assertNull(tier.remove(RedisProxyKey.of("b")));
+            assertEquals(tier.size(), 0);
+        }
+    }
+
+    /**
+     * Test that entries larger than a slot are turned away
+     */
+    @Test
+    public void testRejectsLargeEntries() throws IOException {
+        System.out.println("Running testRejectsLargeEntries");
+
+        try (RedisProxyMappedCache tier = new RedisProxyMappedCache(file, 1 << 20, 64, 10000)) {
+            assertTrue(tier.put(RedisProxyKey.of("k"), new byte[31], false, 0));
+            assertFalse(tier.put(RedisProxyKey.of("k"), new byte[32], false, 0));
+            assertEquals(tier.rejected(), 1);
+        }
+    }
+
+    /**
+     * Test that a full set evicts its least recently used entry, and that
+     * expired entries are neither returned nor kept over live ones
+     */
+    @Test
+    public void testEvictionAndExpiry() throws IOException {
+        System.out.println("Running testEvictionAndExpiry");
+
+        final long[] now = {1000};
+        // One set, so every key competes for the same slots
+        try (RedisProxyMappedCache tier = new RedisProxyMappedCache(
+                file, RedisProxyMappedCache.WAYS * 64, 64, 100, () -> now[0])) {
+            for (int i = 0; i < RedisProxyMappedCache.WAYS; i++) {
+                tier.put(RedisProxyKey.of("k" + i), new byte[1], false, now[0] + i);
+            }
+            tier.put(RedisProxyKey.of("new"), new byte[1], false, now[0]);
+            assertEquals(tier.evictions(), 1);
+            assertNull(tier.remove(RedisProxyKey.of("k0")));
+            assertNotNull(tier.remove(RedisProxyKey.of("k1")));
+
+            now[0] += 1000;
+            assertNull(tier.remove(RedisProxyKey.of("k2")));
+            tier.put(RedisProxyKey.of("fresh"), new byte[1], false, now[0]);
+            assertEquals(tier.evictions(), 1);
+            assertNotNull(tier.remove(RedisProxyKey.of("fresh")));
+        }
+    }
+
+    /**
+     * Test that entries evicted from the proxy's cache are served from the
+     * second tier without going to Redis, and promoted back
+     */
+    @Test
+    public void testProxyTiers() throws Exception {
+        System.out.println("Running testProxyTiers");
+
+        try (EmbeddedRedisServer server = new EmbeddedRedisServer();
+             RedisProxy proxy = new RedisProxy(server.getHost(), server.getPort(), null, 2, 10000)) {
+            proxy.enableTieredCache(file, 1 << 20, RedisProxyMappedCache.DEFAULT_SLOT_BYTES);
+            proxy.configureCompression(16);
+            String large = new String(new char[100]).replace('\0', 'x');
+            for (int i = 0; i < 5; i++) {
+                proxy.set("key" + i, i == 0 ? large : "value" + i);
+            }
+            for (int i = 0; i < 5; i++) {
+                proxy.get("key" + i);
+            }
+            assertEquals(proxy.cacheMisses(), 5);
+
+            long commands = server.commandsProcessed();
+            assertEquals(proxy.get("key0"), large);
+            assertEquals(proxy.get("key1"), "value1");
+            assertEquals(proxy.get("key4"), "value4");
+            assertEquals(server.commandsProcessed(), commands);
+            assertEquals(proxy.cacheHits(), 3);
+            assertTrue(proxy.cacheContainsValidEntry("key4"));
+            assertFalse(proxy.cacheContainsValidEntry("key0"));
+        }
+    }
+}
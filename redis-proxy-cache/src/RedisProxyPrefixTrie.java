@@ -0,0 +1,74 @@
+package src;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Byte-wise trie mapping key prefixes to values, for longest-prefix matching.
+ * A lookup walks at most as many bytes of the key as the longest prefix is
+ * long, and allocates nothing. Children are kept in small arrays, since
+ * prefixes share few branch points.
+ */
+public class RedisProxyPrefixTrie<V> {
+    private static final class Node<V> {
+        byte[] labels = new byte[0];
+        Object[] children = new Object[0];
+        V value;
+
+        @SuppressWarnings("unchecked")
+        Node<V> child(byte label) {
+            for (int i = 0; i < labels.length; i++) {
+                if (labels[i] == label) {
+                    return (Node<V>) children[i];
+                }
+            }
+            return null;
+        }
+
+        Node<V> addChild(byte label) {
+            Node<V> child = new Node<>();
+            labels = Arrays.copyOf(labels, labels.length + 1);
+            children = Arrays.copyOf(children, children.length + 1);
+            labels[labels.length - 1] = label;
+            children[children.length - 1] = child;
+            return child;
+        }
+    }
+
+    private final Node<V> root = new Node<>();
+
+    /**
+     * Maps the prefix to the value, replacing any earlier value for it. The
+     * empty prefix matches every key.
+     */
+    public void put(byte[] prefix, V value) {
+        Node<V> node = root;
+        for (byte label : prefix) {
+            Node<V> child = node.child(label);
+            node = child != null ? child : node.addChild(label);
+        }
+        node.value = value;
+    }
+    public void put(String prefix, V value) {
+        put(prefix.getBytes(StandardCharsets.UTF_8), value);
+    }
+
+    /**
+     * Returns the value for the longest prefix of the key that has one, or
+     * null if none does
+     */
+    public V longestMatch(byte[] key) {
+        Node<V> node = root;
+        V match = node.value;
+        for (int i = 0; i < key.length; i++) {
+            node = node.child(key[i]);
+            if (node == null) {
+                break;
+            }
+            if (node.value != null) {
+                match = node.value;
+            }
+        }
+        return match;
+    }
+}
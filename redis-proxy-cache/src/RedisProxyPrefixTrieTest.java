@@ -0,0 +1,98 @@
+package src;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for routing keys to cache partitions by prefix.
+ */
+public class RedisProxyPrefixTrieTest {
+    /**
+     * Test that the longest matching prefix wins
+     */
+    @Test
+    public void testLongestMatch() {
+        System.out.println("Running testLongestMatch");
+
+        RedisProxyPrefixTrie<String> trie = new RedisProxyPrefixTrie<>();
+        assertNull(trie.longestMatch("anything".getBytes()));
+        trie.put("", "default");
+        trie.put("session:", "session");
+        trie.put("session:admin:", "admin");
+        trie.put("sess", "sess");
+
+        assertEquals(trie.longestMatch("catalog:1".getBytes()), "default");
+        assertEquals(trie.longestMatch("session".getBytes()), "sess");
+        assertEquals(trie.longestMatch("session:42".getBytes()), "session");
+        assertEquals(trie.longestMatch("session:admin:7".getBytes()), "admin");
+        assertEquals(trie.longestMatch("".getBytes()), "default");
+
+        trie.put("session:", "replaced");
+        assertEquals(trie.longestMatch("session:42".getBytes()), "replaced");
+    }
+
+    /**
+     * Test that partitions keep their own capacity and that a partition
+     * without capacity does not cache
+     */
+    @Test
+    public void testProxyPartitions() throws Exception {
+        System.out.println("Running testProxyPartitions");
+
+        try (EmbeddedRedisServer server = new EmbeddedRedisServer();
+             RedisProxy proxy = new RedisProxy(server.getHost(), server.getPort(), null, 10, 10000)) {
+            proxy.addCachePartition("session:", 2, 10000, RedisProxyCache.EvictionPolicy.LRU);
+            proxy.addCachePartition("feature:", 0, 10000, RedisProxyCache.EvictionPolicy.LRU);
+            proxy.set("catalog:1", "c");
+            proxy.get("catalog:1");
+            for (int i = 0; i < 5; i++) {
+                proxy.set("session:" + i, "s");
+                proxy.get("session:" + i);
+            }
+            // Sessions only evict each other
+            assertTrue(proxy.cacheContainsValidEntry("catalog:1"));
+            assertEquals(proxy.cachePartitionSize("session:"), 2);
+            assertEquals(proxy.cacheSize(), 3);
+
+            proxy.set("feature:x", "on");
+            assertEquals(proxy.get("feature:x"), "on");
+            assertEquals(proxy.get("feature:x"), "on");
+            assertFalse(proxy.cacheContainsValidEntry("feature:x"));
+
+            proxy.removeCachePartition("session:");
+            assertEquals(proxy.cacheSize(), 1);
+            proxy.get("session:0");
+            assertTrue(proxy.cacheContainsValidEntry("session:0"));
+        }
+    }
+
+    /**
+     * Test that adding or removing a partition drops the entries the old
+     * routing cached, so none are served stale afterwards
+     */
+    @Test
+    public void testPartitionChangesDropStaleEntries() throws Exception {
+        System.out.println("Running testPartitionChangesDropStaleEntries");
+
+        try (EmbeddedRedisServer server = new EmbeddedRedisServer();
+             RedisProxy proxy = new RedisProxy(server.getHost(), server.getPort(), null, 10, 10000)) {
+            proxy.set("session:1", "old");
+            assertEquals(proxy.get("session:1"), "old");
+
+            proxy.addCachePartition("session:", 10, 10000, RedisProxyCache.EvictionPolicy.LRU);
+            assertFalse(proxy.cacheContainsValidEntry("session:1"));
+            proxy.set("session:1", "new");
+            proxy.removeCachePartition("session:");
+            assertEquals(proxy.get("session:1"), "new");
+
+            // The same goes for a partition nested in another
+            proxy.addCachePartition("session:", 10, 10000, RedisProxyCache.EvictionPolicy.LRU);
+            proxy.set("session:admin:1", "old");
+            assertEquals(proxy.get("session:admin:1"), "old");
+            proxy.addCachePartition("session:admin:", 10, 10000, RedisProxyCache.EvictionPolicy.LRU);
+            proxy.set("session:admin:1", "new");
+            proxy.removeCachePartition("session:admin:");
+            assertEquals(proxy.get("session:admin:1"), "new");
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package src;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Fixed-size, lock-free ring buffer of requests that took longer than a
+ * configurable threshold, in the spirit of Redis' SLOWLOG.
+ *
+ * Slots are allocated up front and overwritten in place, so recording an
+ * entry allocates nothing. Each slot copies the key into its own buffer,
+ * truncated to MAX_KEY_BYTES as Redis truncates SLOWLOG arguments, so callers
+ * may reuse their key arrays. Writers claim a slot with a single atomic
+ * increment and publish it with a per-slot sequence number; readers copy a
+ * slot and skip it if it was rewritten while being copied.
+ */
+public class RedisProxySlowLog {
+    private static final AtomicLongFieldUpdater<Slot> SEQUENCE =
+        AtomicLongFieldUpdater.newUpdater(Slot.class, "sequence");
+
+    /**
+     * Longest key kept in an entry, as Redis' SLOWLOG_ENTRY_MAX_STRING
+     */
+    public static final int MAX_KEY_BYTES = 128;
+
+    /**
+     * Pre-allocated, mutable slot in the ring. The sequence number is odd
+     * while a writer owns the slot and even once the slot is published.
+     */
+    static final class Slot {
+        volatile long sequence;
+        volatile long id;
+        volatile long timestampMillis;
+        final byte[] key = new byte[MAX_KEY_BYTES];
+        volatile int keyLength;
+        volatile long lockWaitNanos;
+        volatile long cacheLookupNanos;
+        volatile long backendNanos;
+        volatile long cacheFillNanos;
+        volatile long totalNanos;
+        volatile int valueSize;
+    }
+
+    /**
+     * Immutable copy of a slow log slot, returned by the query API.
+     * The key is decoded as UTF-8 for display; a truncated key ends with
+     * "... (N more bytes)", as in Redis.
+     */
+    public static final class Entry {
+        public final long id;
+        public final long timestampMillis;
+        public final String key;
+        public final long lockWaitNanos;
+        public final long cacheLookupNanos;
+        public final long backendNanos;
+        public final long cacheFillNanos;
+        public final long totalNanos;
+        public final int valueSize;
+
+        Entry(long id, long timestampMillis, byte[] key, int keyLength, long lockWaitNanos,
+              long cacheLookupNanos, long backendNanos, long cacheFillNanos, long totalNanos,
+              int valueSize) {
+            this.id = id;
+            this.timestampMillis = timestampMillis;
+            String decoded = new String(key, StandardCharsets.UTF_8);
+            this.key = keyLength > key.length
+                ? decoded + "... (" + (keyLength - key.length) + " more bytes)"
+                : decoded;
+            this.lockWaitNanos = lockWaitNanos;
+            this.cacheLookupNanos = cacheLookupNanos;
+            this.backendNanos = backendNanos;
+            this.cacheFillNanos = cacheFillNanos;
+            this.totalNanos = totalNanos;
+            this.valueSize = valueSize;
+        }
+
+        @Override
+        public String toString() {
+            return "#" + id + " " + key + " total=" + (totalNanos / 1000) + "us"
+                + " wait=" + (lockWaitNanos / 1000) + "us"
+                + " lookup=" + (cacheLookupNanos / 1000) + "us"
+                + " backend=" + (backendNanos / 1000) + "us"
+                + " fill=" + (cacheFillNanos / 1000) + "us"
+                + " size=" + valueSize;
+        }
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+
+    /**
+     * Number of the newest entries exposed; the ring may hold a few more
+     */
+    private final int maxLen;
+
+    /**
+     * Id of the next entry to be written; the slot is id & mask
+     */
+    private final AtomicLong nextId = new AtomicLong();
+
+    /**
+     * Entries dropped because their slot was still being written by another thread
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Requests slower than this are recorded; negative disables the log
+     */
+    private volatile long slowerThanNanos;
+
+    /**
+     * Creates a slow log keeping the newest maxLen entries of requests slower
+     * than the given number of microseconds. The ring itself is rounded up to
+     * a power of two, but only maxLen entries are ever returned or counted.
+     * A negative threshold disables recording, zero records every request.
+     */
+    public RedisProxySlowLog(long slowerThanMicros, int maxLen) throws IllegalArgumentException {
+        if (maxLen <= 0) {
+            throw new IllegalArgumentException("Slow log length must be positive");
+        }
+        int size = Integer.highestOneBit(maxLen);
+        if (size < maxLen) {
+            size <<= 1;
+        }
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            this.slots[i] = new Slot();
+        }
+        this.mask = size - 1;
+        this.maxLen = maxLen;
+        setSlowerThanMicros(slowerThanMicros);
+    }
+
+    /**
+     * Changes the threshold; a negative value disables recording
+     */
+    public void setSlowerThanMicros(long slowerThanMicros) {
+        this.slowerThanNanos = slowerThanMicros < 0 ? -1 : slowerThanMicros * 1000;
+    }
+
+    /**
+     * Returns true if a request that took this long would be recorded
+     */
+    public boolean isSlow(long totalNanos) {
+        long threshold = this.slowerThanNanos;
+        return threshold >= 0 && totalNanos >= threshold;
+    }
+
+    /**
+     * Records a request that did not wait for a lock
+     */
+    public void record(byte[] key, long cacheLookupNanos, long backendNanos,
+                       long cacheFillNanos, int valueSize) {
+        record(key, 0, cacheLookupNanos, backendNanos, cacheFillNanos, valueSize);
+    }
+
+    /**
+     * Records the request if it is slower than the threshold, counting the
+     * time it spent waiting for a lock before it started.
+     * Allocation free; safe to call from any number of threads.
+     */
+    public void record(byte[] key, long lockWaitNanos, long cacheLookupNanos, long backendNanos,
+                       long cacheFillNanos, int valueSize) {
+        long totalNanos = lockWaitNanos + cacheLookupNanos + backendNanos + cacheFillNanos;
+        if (!isSlow(totalNanos)) {
+            return;
+        }
+
+        long id = nextId.getAndIncrement();
+        Slot slot = slots[(int) (id & mask)];
+
+        // Claim the slot by making its sequence odd; if another writer that
+        // lapped the ring still owns it, drop this entry rather than wait
+        long sequence = slot.sequence;
+        if ((sequence & 1) != 0 || !SEQUENCE.compareAndSet(slot, sequence, sequence + 1)) {
+            dropped.incrementAndGet();
+            return;
+        }
+
+        slot.id = id;
+        slot.timestampMillis = System.currentTimeMillis();
+        System.arraycopy(key, 0, slot.key, 0, Math.min(key.length, MAX_KEY_BYTES));
+        slot.keyLength = key.length;
+        slot.lockWaitNanos = lockWaitNanos;
+        slot.cacheLookupNanos = cacheLookupNanos;
+        slot.backendNanos = backendNanos;
+        slot.cacheFillNanos = cacheFillNanos;
+        slot.totalNanos = totalNanos;
+        slot.valueSize = valueSize;
+        slot.sequence = sequence + 2;
+    }
+
+    /**
+     * Returns up to count of the most recent entries, newest first
+     */
+    public List<Entry> get(int count) {
+        List<Entry> entries = new ArrayList<>();
+        long newest = nextId.get() - 1;
+        long oldest = Math.max(0, newest - maxLen + 1);
+
+        for (long id = newest; id >= oldest && entries.size() < count; id--) {
+            Slot slot = slots[(int) (id & mask)];
+            long before = slot.sequence;
+            if ((before & 1) != 0) {
+                continue;
+            }
+            int keyLength = slot.keyLength;
+            byte[] key = Arrays.copyOf(slot.key, Math.min(keyLength, MAX_KEY_BYTES));
+            Entry entry = new Entry(slot.id, slot.timestampMillis, key, keyLength,
+                slot.lockWaitNanos, slot.cacheLookupNanos, slot.backendNanos, slot.cacheFillNanos,
+                slot.totalNanos, slot.valueSize);
+            // Skip slots that were rewritten while copying or that already
+            // hold a newer entry than the one we are looking for
+            if (slot.sequence != before || entry.id != id) {
+                continue;
+            }
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the number of entries currently held in the log
+     */
+    public int len() {
+        return (int) Math.min(nextId.get(), maxLen);
+    }
+
+    /**
+     * Returns the number of entries dropped because of write contention
+     */
+    public long droppedEntries() {
+        return dropped.get();
+    }
+
+    /**
+     * Clears the log. Entries being written concurrently may survive the reset.
+     */
+    public void reset() {
+        nextId.set(0);
+        for (Slot slot : slots) {
+            slot.id = -1;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package src;
+
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the slow log ring buffer.
+ */
+public class RedisProxySlowLogTest {
+    /**
+     * Test that only requests over the threshold are recorded, newest first
+     */
+    @Test
+    public void testThreshold() {
+        System.out.println("Running testThreshold");
+
+        RedisProxySlowLog slowLog = new RedisProxySlowLog(100, 8);
+        slowLog.record("fast".getBytes(), 10000, 0, 0, 1);
+        slowLog.record("slow".getBytes(), 50000, 40000, 20000, 2);
+        slowLog.record("slower".getBytes(), 1000, 200000, 0, 3);
+
+        List<RedisProxySlowLog.Entry> entries = slowLog.get(10);
+        assertEquals(entries.size(), 2);
+        assertEquals(entries.get(0).key, "slower");
+        assertEquals(entries.get(0).backendNanos, 200000);
+        assertEquals(entries.get(1).key, "slow");
+        assertEquals(entries.get(1).totalNanos, 110000);
+        assertEquals(entries.get(1).valueSize, 2);
+        assertEquals(slowLog.len(), 2);
+    }
+
+    /**
+     * Test that a negative threshold disables the log and zero records everything
+     */
+    @Test
+    public void testDisabledAndRecordAll() {
+        System.out.println("Running testDisabledAndRecordAll");
+
+        RedisProxySlowLog slowLog = new RedisProxySlowLog(-1, 8);
+        slowLog.record("a".getBytes(), Long.MAX_VALUE / 2, 0, 0, 1);
+        assertEquals(slowLog.len(), 0);
+
+        slowLog.setSlowerThanMicros(0);
+        slowLog.record("a".getBytes(), 0, 0, 0, 1);
+        assertEquals(slowLog.len(), 1);
+    }
+
+    /**
+     * Test that the log keeps only the most recent maxLen entries and can be reset
+     */
+    @Test
+    public void testWrapAroundAndReset() {
+        System.out.println("Running testWrapAroundAndReset");
+
+        // The ring is rounded up to 4 slots, but only 3 entries are kept
+        RedisProxySlowLog slowLog = new RedisProxySlowLog(0, 3);
+        for (int i = 0; i < 10; i++) {
+            slowLog.record(("key" + i).getBytes(), i, 0, 0, 0);
+        }
+        List<RedisProxySlowLog.Entry> entries = slowLog.get(10);
+        assertEquals(entries.size(), 3);
+        assertEquals(entries.get(0).key, "key9");
+        assertEquals(entries.get(2).key, "key7");
+        assertEquals(slowLog.len(), 3);
+        assertEquals(slowLog.get(2).size(), 2);
+
+        slowLog.reset();
+        assertEquals(slowLog.len(), 0);
+        assertTrue(slowLog.get(10).isEmpty());
+        slowLog.record("after".getBytes(), 1, 0, 0, 0);
+        assertEquals(slowLog.get(10).get(0).key, "after");
+    }
+
+    /**
+     * Test that entries keep their own copy of the key, truncated like Redis'
+     */
+    @Test
+    public void testKeysCopiedAndTruncated() {
+        System.out.println("Running testKeysCopiedAndTruncated");
+
+        RedisProxySlowLog slowLog = new RedisProxySlowLog(0, 8);
+        byte[] key = "k1".getBytes();
+        slowLog.record(key, 1, 0, 0, 0);
+        key[1] = '2';
+        assertEquals(slowLog.get(1).get(0).key, "k1");
+
+        byte[] longKey = new byte[RedisProxySlowLog.MAX_KEY_BYTES + 10];
+        Arrays.fill(longKey, (byte) 'x');
+        slowLog.record(longKey, 1, 0, 0, 0);
+        assertEquals(slowLog.get(1).get(0).key,
+            new String(longKey, 0, RedisProxySlowLog.MAX_KEY_BYTES) + "... (10 more bytes)");
+    }
+
+    /**
+     * Test that the proxy records sets as well as gets
+     */
+    @Test
+    public void testProxyRecordsSetsAndGets() throws Exception {
+        System.out.println("Running testProxyRecordsSetsAndGets");
+
+        try (EmbeddedRedisServer server = new EmbeddedRedisServer();
+             RedisProxy proxy = new RedisProxy(server.getHost(), server.getPort(), null, 10, 10000)) {
+            proxy.configureSlowLog(0, 8);
+            proxy.set("a", "value");
+            proxy.get("a");
+
+            List<RedisProxySlowLog.Entry> entries = proxy.slowLogGet(10);
+            assertEquals(entries.size(), 2);
+            RedisProxySlowLog.Entry set = entries.get(1);
+            assertEquals(set.key, "a");
+            assertEquals(set.cacheLookupNanos, 0);
+            assertTrue(set.backendNanos > 0);
+            assertEquals(set.valueSize, 5);
+        }
+    }
+
+    /**
+     * Test that time spent waiting for the proxy's lock is recorded
+     */
+    @Test
+    public void testProxyRecordsLockWait() throws Exception {
+        System.out.println("Running testProxyRecordsLockWait");
+
+        try (EmbeddedRedisServer server = new EmbeddedRedisServer();
+             final RedisProxy proxy = new RedisProxy(server.getHost(), server.getPort(), null, 10, 10000)) {
+            proxy.configureSlowLog(0, 8);
+            proxy.set("a", "value");
+            proxy.slowLogReset();
+
+            Thread reader = new Thread() {
+                @Override
+                public void run() {
+                    proxy.get("a");
+                }
+            };
+            synchronized (proxy) {
+                reader.start();
+                while (reader.getState() != Thread.State.BLOCKED) {
+                    Thread.sleep(1);
+                }
+                Thread.sleep(50);
+            }
+            reader.join();
+
+            RedisProxySlowLog.Entry get = proxy.slowLogGet(10).get(0);
+            assertTrue(get.lockWaitNanos >= 50000000);
+            assertEquals(get.totalNanos, get.lockWaitNanos + get.cacheLookupNanos
+                + get.backendNanos + get.cacheFillNanos);
+        }
+    }
+
+    /**
+     * Test that concurrent writers never corrupt the entries a reader sees
+     */
+    @Test
+    public void testConcurrentWriters() throws InterruptedException {
+        System.out.println("Running testConcurrentWriters");
+
+        final RedisProxySlowLog slowLog = new RedisProxySlowLog(0, 64);
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            final byte[] key = ("writer" + t).getBytes();
+            final long lookup = t + 1;
+            writers[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        slowLog.record(key, lookup, lookup * 10, lookup * 100, (int) lookup);
+                    }
+                }
+            };
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        for (RedisProxySlowLog.Entry entry : slowLog.get(64)) {
+            long lookup = entry.cacheLookupNanos;
+            assertEquals(entry.key, "writer" + (lookup - 1));
+            assertEquals(entry.backendNanos, lookup * 10);
+            assertEquals(entry.cacheFillNanos, lookup * 100);
+            assertEquals(entry.totalNanos, lookup * 111);
+        }
+    }
+}
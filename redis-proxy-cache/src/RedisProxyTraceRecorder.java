@@ -0,0 +1,188 @@
+package src;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Records the proxy's gets and sets to a compact binary trace file, for
+ * offline replay by RedisProxyCacheSimulator.
+ *
+ * The file starts with a header (magic, version, start time in epoch millis)
+ * followed by fixed-size records: the operation (1 byte), a 64-bit hash of the
+ * key (8 bytes) and the milliseconds since the start of the trace (4 bytes).
+ *
+ * Records are appended to an in-memory buffer and full buffers are written
+ * out by a background thread. If the writer falls behind and no empty buffer
+ * is available, records are dropped rather than slowing the request down.
+ */
+public class RedisProxyTraceRecorder implements Closeable {
+    public static final int MAGIC = 0x52505452; // "RPTR"
+    public static final int VERSION = 1;
+    public static final int HEADER_BYTES = 16;
+    public static final int RECORD_BYTES = 13;
+
+    public static final byte OP_GET = 0;
+    public static final byte OP_SET = 1;
+
+    private static final int DEFAULT_BUFFER_BYTES = 64 * 1024;
+    private static final int DEFAULT_BUFFER_COUNT = 8;
+
+    /**
+     * Empty buffer used to tell the writer thread to stop
+     */
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final FileChannel channel;
+    private final long startMillis;
+    private final BlockingQueue<ByteBuffer> free;
+    private final BlockingQueue<ByteBuffer> filled;
+    private final Thread writer;
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Buffer currently being filled; null if none was free when the last one filled up
+     */
+    private ByteBuffer current;
+    private boolean closed = false;
+    private volatile IOException writeError;
+
+    public RedisProxyTraceRecorder(File file) throws IOException {
+        this(file, DEFAULT_BUFFER_BYTES, DEFAULT_BUFFER_COUNT);
+    }
+
+    public RedisProxyTraceRecorder(File file, int bufferBytes, int bufferCount)
+            throws IOException, IllegalArgumentException {
+        if (bufferBytes < RECORD_BYTES || bufferCount < 2) {
+            throw new IllegalArgumentException("Need at least two buffers of one record each");
+        }
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.startMillis = System.currentTimeMillis();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putInt(VERSION).putLong(startMillis).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+
+        // Round down to a whole number of records so records never straddle buffers
+        int recordsPerBuffer = bufferBytes / RECORD_BYTES;
+        this.free = new ArrayBlockingQueue<>(bufferCount);
+        this.filled = new ArrayBlockingQueue<>(bufferCount + 1);
+        for (int i = 1; i < bufferCount; i++) {
+            free.add(ByteBuffer.allocate(recordsPerBuffer * RECORD_BYTES));
+        }
+        this.current = ByteBuffer.allocate(recordsPerBuffer * RECORD_BYTES);
+
+        this.writer = new Thread("trace-writer-" + file.getName()) {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        };
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Appends a record of the given operation on the key.
+     * Never blocks on I/O; records are dropped if the writer cannot keep up.
+     */
+    public synchronized void record(byte op, byte[] key) {
+        if (closed) {
+            return;
+        }
+        if (current == null) {
+            current = free.poll();
+            if (current == null) {
+                dropped.incrementAndGet();
+                return;
+            }
+        }
+        current.put(op);
+        current.putLong(hash(key));
+        current.putInt((int) (System.currentTimeMillis() - startMillis));
+        if (!current.hasRemaining()) {
+            filled.add(current);
+            current = free.poll();
+        }
+    }
+
+    /**
+     * Returns the number of records dropped because the writer fell behind
+     */
+    public long droppedRecords() {
+        return dropped.get();
+    }
+
+    /**
+     * Writes out the remaining records and closes the file
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (current != null && current.position() > 0) {
+                filled.add(current);
+            }
+            current = null;
+            filled.add(END);
+        }
+        try {
+            writer.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        if (writeError != null) {
+            throw writeError;
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            ByteBuffer buffer;
+            try {
+                buffer = filled.take();
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            if (buffer == END) {
+                return;
+            }
+            buffer.flip();
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            catch (IOException e) {
+                // Keep draining so the recorder does not stall; report on close
+                writeError = e;
+            }
+            buffer.clear();
+            free.add(buffer);
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the key's bytes
+     */
+    public static long hash(byte[] key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}